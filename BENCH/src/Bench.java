@@ -0,0 +1,386 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Microbenchmarks for the assembler (PROG1, PROG2), disassembler and interpreter (PA2_MS1) hot paths.
+//
+// Each tool keeps its code in a default-package Main, so every module is loaded from its
+// compiled output in its own class loader and called through method handles. Run from the
+// repository root after ./mips build, or point the options at other compiled classes:
+//
+//   java -cp BENCH/out Bench [--prog1 dir] [--prog2 dir] [--pa2 dir] [--sizes 1000,...,10000000]
+//                            [--filter text] [--quick]
+//
+// Reports the average time per operation and gc.alloc.rate.norm (bytes allocated by the
+// benchmark thread per operation). Baseline numbers are kept in BENCH/baseline.txt.
+public class Bench {
+    private static final String[] ENCODE_SAMPLES = {
+            "add $t0, $t1, $t2", "lui $t0, 4097", "lw $t0, 8($sp)", "addiu $t0, $t1, -4", "j 0x100000", "syscall"
+    };
+
+    private static volatile long sink;
+
+    private final List<Result> results = new ArrayList<>();
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private String filter = "";
+    private int warmupIterations = 5;
+    private int measurementIterations = 5;
+    private long iterationNanos = 1_000_000_000L;
+
+    public static void main(String[] args) throws Throwable {
+        String prog1 = Modules.PROG1;
+        String prog2 = Modules.PROG2;
+        String pa2 = Modules.PA2;
+        int[] sizes = {1_000, 10_000, 100_000, 1_000_000};
+        Bench bench = new Bench();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--prog1": prog1 = args[++i]; break;
+                case "--prog2": prog2 = args[++i]; break;
+                case "--pa2": pa2 = args[++i]; break;
+                case "--filter": bench.filter = args[++i]; break;
+                case "--sizes":
+                    sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--quick":
+                    bench.warmupIterations = 2;
+                    bench.measurementIterations = 3;
+                    bench.iterationNanos = 200_000_000L;
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        Modules.check("--prog1", prog1, "PROG1/src");
+        Modules.check("--prog2", prog2, "PROG2/src");
+        Modules.check("--pa2", pa2, "PA2_MS1/src");
+
+        // Nothing under test should print, but keep any stray output out of the report
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            bench.encodeBenchmarks(load(prog1), load(prog2));
+            bench.expansionBenchmarks(load(prog2));
+            bench.assemblyBenchmarks(load(prog2), sizes);
+            bench.disassemblyBenchmarks(load(pa2));
+            bench.executionBenchmarks(load(pa2));
+        } finally {
+            System.setOut(report);
+        }
+        bench.print(report);
+    }
+
+    private static Class<?> load(String outputDirectory) throws Exception {
+        URL url = Paths.get(outputDirectory).toUri().toURL();
+        return Class.forName("Main", true, new URLClassLoader(new URL[]{url}, ClassLoader.getPlatformClassLoader()));
+    }
+
+    private static MethodHandle handle(Class<?> owner, String name, Class<?>... parameters) throws Exception {
+        Method method = owner.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    // Single instruction encode, one benchmark per format. PROG2 lines are tokenized and encoded
+    private void encodeBenchmarks(Class<?> prog1, Class<?> prog2) throws Throwable {
+        AssembleLine assemble = assemble(prog1);
+        AssembleLine assembleLine = assembleLine(prog2);
+
+        for (String instruction : ENCODE_SAMPLES) {
+            String format = instruction.split(" ")[0];
+            run("prog1.assemble." + format, () -> assemble.encode(instruction));
+            run("prog2.assembleLine." + format, () -> assembleLine.encode(instruction));
+        }
+        run("prog2.assembleLine.beq", () -> assembleLine.encode("beq $t0, $t1, loop"));
+    }
+
+    // Pseudo-instructions, expanded and encoded in one step
+    private void expansionBenchmarks(Class<?> prog2) throws Throwable {
+        AssembleLine assembleLine = assembleLine(prog2);
+        String[][] samples = {
+                {"li_small", "li $t0, 5"}, {"li_large", "li $t0, 70000"}, {"la", "la $a0, msg"},
+                {"blt", "blt $t0, $t1, loop"}, {"move", "move $t0, $t1"}
+        };
+        for (String[] sample : samples) {
+            run("prog2.assembleLine." + sample[0], () -> assembleLine.encode(sample[1]));
+        }
+    }
+
+    // PROG1's Lexer and assemble, with one reused Lexer and no trace
+    private static AssembleLine assemble(Class<?> prog1) throws Exception {
+        Class<?> lexerClass = prog1.getClassLoader().loadClass("Lexer");
+        Constructor<?> constructor = lexerClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Object lexer = constructor.newInstance();
+        MethodHandle tokenize = handle(lexerClass, "tokenize", CharSequence.class);
+        MethodHandle assemble = handle(prog1, "assemble", lexerClass, Consumer.class);
+        return instruction -> (int) assemble.invoke(tokenize.invoke(lexer, instruction), (Consumer<String>) null);
+    }
+
+    // PROG2's Lexer and assembleLine, with one reused Lexer and output buffer
+    private static AssembleLine assembleLine(Class<?> prog2) throws Exception {
+        ClassLoader loader = prog2.getClassLoader();
+        Class<?> lexerClass = loader.loadClass("Lexer");
+        Constructor<?> constructor = lexerClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Object lexer = constructor.newInstance();
+        MethodHandle tokenize = handle(lexerClass, "tokenize", CharSequence.class);
+        MethodHandle assembleLine = handle(prog2, "assembleLine", lexerClass, int.class, int[].class, int.class,
+                Map.class, Map.class, loader.loadClass("Fixups"));
+        Map<String, Integer> textLabels = Map.of("loop", 0x00400000);
+        Map<String, Integer> dataLabels = Map.of("msg", 0x10010000);
+        int[] words = new int[2];
+        return instruction -> {
+            int size = (int) assembleLine.invoke(tokenize.invoke(lexer, instruction), 0x00400004, words, 0,
+                    textLabels, dataLabels, null);
+            return words[0] + size;
+        };
+    }
+
+    // Full two-pass assembly through the command line entry point, including file I/O
+    private void assemblyBenchmarks(Class<?> prog2, int[] sizes) throws Throwable {
+        MethodHandle main = handle(prog2, "main", String[].class);
+        Path directory = Files.createTempDirectory("bench");
+        for (int size : sizes) {
+            String name = "prog2.assemble.lines_" + size;
+            if (!name.contains(filter)) continue;
+            Path source = directory.resolve("synthetic" + size + ".asm");
+            Files.write(source, syntheticProgram(size));
+            String[] args = {source.toString()};
+            run(name, () -> {
+                main.invokeExact(args);
+                return 0;
+            });
+        }
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    // Batch disassembly: decode and render a block of encoded words
+    private void disassemblyBenchmarks(Class<?> pa2) throws Throwable {
+        Class<?> instructionClass = Class.forName("Main$Instruction", true, pa2.getClassLoader());
+        Constructor<?> constructor = instructionClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Object instruction = constructor.newInstance();
+        MethodHandle decode = handle(instructionClass, "decode", int.class).bindTo(instruction);
+        MethodHandle appendTo = handle(instructionClass, "appendTo", byte[].class, int.class).bindTo(instruction);
+
+        int[] words = {0x012a4020, 0x3c011001, 0x8fa8fff8, 0x25290001, 0x1420fff3, 0x08100008, 0x0000000c};
+        byte[] out = new byte[128];
+        run("pa2.disassemble.mixed_7_words", () -> {
+            int length = 0;
+            for (int word : words) {
+                if ((boolean) decode.invokeExact(word)) {
+                    length += (int) appendTo.invokeExact(out, 0);
+                }
+            }
+            return length;
+        });
+    }
+
+    // Same instruction mix as the assembler tests: labels every 50 lines, branches to random labels
+    static List<String> syntheticProgram(int lines) {
+        Random random = new Random(1);
+        String[] registers = {"$t0", "$t1", "$t2", "$t3", "$s0", "$s1", "$a0", "$v0"};
+        int labels = Math.max(1, lines / 50);
+        List<String> program = new ArrayList<>(lines + lines / 50 + 30);
+        program.add(".data");
+        for (int i = 0; i < 20; i++) {
+            program.add("str" + i + ": .asciiz \"string number " + i + "\"");
+        }
+        program.add(".text");
+        program.add("main:");
+        for (int i = 0; i < lines; i++) {
+            if (i % 50 == 0) program.add("L" + (i / 50) + ":");
+            String a = registers[random.nextInt(8)];
+            String b = registers[random.nextInt(8)];
+            String c = registers[random.nextInt(8)];
+            String label = "L" + random.nextInt(labels);
+            switch (random.nextInt(12)) {
+                case 0: program.add("    add " + a + ", " + b + ", " + c); break;
+                case 1: program.add("    addiu " + a + ", " + b + ", " + (random.nextInt(201) - 100)); break;
+                case 2: program.add("    li " + a + ", " + new int[]{5, -7, 70000, 0x12340000}[random.nextInt(4)]); break;
+                case 3: program.add("    la " + a + ", str" + random.nextInt(20)); break;
+                case 4: program.add("    beq " + a + ", " + b + ", " + label); break;
+                case 5: program.add("    bne " + a + ", " + b + ", " + label + "  # comment"); break;
+                case 6: program.add("    j " + label); break;
+                case 7: program.add("    lw " + a + ", " + random.nextInt(64) * 4 + "($sp)"); break;
+                case 8: program.add("    sw " + a + ", -" + random.nextInt(64) * 4 + "($sp)"); break;
+                case 9: program.add("    blt " + a + ", " + b + ", " + label); break;
+                case 10: program.add("    move " + a + ", " + b); break;
+                default: program.add("    ori " + a + ", " + b + ", " + random.nextInt(65536)); break;
+            }
+        }
+        program.add("    li $v0, 10");
+        program.add("    syscall");
+        return program;
+    }
+
+    // Interpreter throughput, one million instructions of a loop of lw, sw, ALU ops and a branch,
+    // the same loop once the Jit has compiled it, and a loop whose every third instruction is a
+    // print_int syscall into the Console. Then what Batch pays per instance: a Machine
+    // on the shared Program and a fork of a frozen Memory, running ten thousand instructions of
+    // the loop, whose sw copies the data page
+    private void executionBenchmarks(Class<?> pa2) throws Throwable {
+        Class<?> machineClass = Class.forName("Machine", true, pa2.getClassLoader());
+        Class<?> memoryClass = Class.forName("Memory", true, pa2.getClassLoader());
+        Constructor<?> memory = memoryClass.getDeclaredConstructor();
+        memory.setAccessible(true);
+        Constructor<?> constructor = machineClass.getDeclaredConstructor(int[].class, int.class, memoryClass,
+                ReadableByteChannel.class, WritableByteChannel.class);
+        constructor.setAccessible(true);
+        int[] text = {
+                0x3c011001, 0x34300000, // la $s0, 0x10010000
+                0x25290003, 0x312a00ff, 0xae0a0000, 0x8e0b0000, // loop: addiu, andi, sw, lw
+                0x016a6020, 0x0188682a, 0x2508ffff, 0x1500fff8, // add, slt, addiu, bne loop
+                0x08100002 // j loop
+        };
+        for (boolean jit : new boolean[]{false, true}) {
+            Object machine = constructor.newInstance(text, text.length, memory.newInstance(),
+                    Channels.newChannel(InputStream.nullInputStream()),
+                    Channels.newChannel(OutputStream.nullOutputStream()));
+            if (jit) handle(machineClass, "enableJit").invoke(machine);
+            MethodHandle run = handle(machineClass, "run", long.class).bindTo(machine);
+            run("pa2.run.instructions_1M" + (jit ? "_jit" : ""), () -> (long) run.invokeExact(1_000_000L));
+        }
+
+        int[] printing = {
+                0x24020001, // li $v0, 1
+                0x24840001, 0x0000000c, 0x08100001 // loop: addiu $a0, $a0, 1, syscall, j loop
+        };
+        Object printer = constructor.newInstance(printing, printing.length, memory.newInstance(),
+                Channels.newChannel(InputStream.nullInputStream()),
+                Channels.newChannel(OutputStream.nullOutputStream()));
+        MethodHandle print = handle(machineClass, "run", long.class).bindTo(printer);
+        run("pa2.run.print_int_1M", () -> (long) print.invokeExact(1_000_000L));
+
+        Class<?> programClass = Class.forName("Machine$Program", true, pa2.getClassLoader());
+        Constructor<?> programConstructor = programClass.getDeclaredConstructor(int[].class, int.class);
+        programConstructor.setAccessible(true);
+        Constructor<?> instance = machineClass.getDeclaredConstructor(programClass, memoryClass,
+                ReadableByteChannel.class, WritableByteChannel.class);
+        instance.setAccessible(true);
+        Object program = programConstructor.newInstance(text, text.length);
+        Object frozen = memory.newInstance();
+        handle(memoryClass, "freeze").invoke(frozen);
+        MethodHandle fork = handle(memoryClass, "fork");
+        MethodHandle runInstance = handle(machineClass, "run", long.class);
+        run("pa2.batch.instance_10k", () -> {
+            Object machine = instance.newInstance(program, fork.invoke(frozen),
+                    Channels.newChannel(InputStream.nullInputStream()),
+                    Channels.newChannel(OutputStream.nullOutputStream()));
+            return (long) runInstance.invoke(machine, 10_000L);
+        });
+    }
+
+    interface Operation {
+        long run() throws Throwable;
+    }
+
+    interface AssembleLine {
+        int encode(String instruction) throws Throwable;
+    }
+
+    // Warmup and measurement iterations, each running the operation for at least iterationNanos
+    private void run(String name, Operation operation) throws Throwable {
+        if (!name.contains(filter)) return;
+        long threadId = Thread.currentThread().getId();
+
+        // Batch fast operations so the clock is read about once per millisecond
+        long first = System.nanoTime();
+        sink += operation.run();
+        int batch = (int) Math.max(1, Math.min(4096, 1_000_000 / Math.max(1, System.nanoTime() - first)));
+
+        double[] nanosPerOp = new double[measurementIterations];
+        double[] bytesPerOp = new double[measurementIterations];
+
+        for (int iteration = -warmupIterations; iteration < measurementIterations; iteration++) {
+            long operations = 0;
+            long result = 0;
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int i = 0; i < batch; i++) {
+                    result += operation.run();
+                }
+                operations += batch;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iterationNanos);
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            sink += result;
+
+            if (iteration >= 0) {
+                nanosPerOp[iteration] = (double) elapsed / operations;
+                bytesPerOp[iteration] = (double) allocated / operations;
+            }
+        }
+        results.add(new Result(name, nanosPerOp, bytesPerOp));
+        System.err.printf("%-50s done%n", name);
+    }
+
+    private void print(PrintStream out) {
+        out.printf("%-50s %5s %16s %12s %8s %20s%n", "Benchmark", "Cnt", "Score", "Error", "Units",
+                "gc.alloc.rate.norm");
+        for (Result result : results) {
+            double mean = mean(result.nanosPerOp);
+            String units = "ns/op";
+            double scale = 1;
+            if (mean >= 1_000_000) {
+                units = "ms/op";
+                scale = 1_000_000;
+            }
+            out.printf("%-50s %5d %16.3f %12.3f %8s %14.1f B/op%n", result.name, result.nanosPerOp.length,
+                    mean / scale, deviation(result.nanosPerOp) / scale, units, mean(result.bytesPerOp));
+        }
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) sum += value;
+        return sum / values.length;
+    }
+
+    // Sample standard deviation, reported as the error column
+    private static double deviation(double[] values) {
+        if (values.length < 2) return 0;
+        double mean = mean(values);
+        double sum = 0;
+        for (double value : values) sum += (value - mean) * (value - mean);
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+    static class Result {
+        final String name;
+        final double[] nanosPerOp;
+        final double[] bytesPerOp;
+
+        Result(String name, double[] nanosPerOp, double[] bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+}
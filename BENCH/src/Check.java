@@ -0,0 +1,587 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Regression checks for behavior the benchmarks do not look at, such as caches going stale or
+// compiled code drifting from the interpreter. PROG2 runs as a new process, the way a build
+// runs it, and its output is compared with a fresh run. PA2_MS1's Machine is loaded like Bench
+// loads it and every program runs once interpreted and once with the Jit on. Run from the
+// repository root after ./mips build, or point the options at other compiled classes:
+//
+//   java -cp BENCH/out Check [--prog2 dir] [--pa2 dir] [--filter text] [--programs N] [--seed N]
+//
+// Prints one line per check and exits with status 1 when any of them failed. A failure of
+// pa2.jit.random_words names the seed that reproduces it with --programs 1.
+public class Check {
+    private static final int DATA_ADDRESS = 0x10010000;
+    private static final int STACK_POINTER = 0x7fffeffc;
+
+    // Every mode of PROG2 that assembles a single file
+    private static final String[][] MODES = {{}, {"--stream"}, {"--threads", "2"}, {"--incremental"}, {"--optimize"}};
+
+    private final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    private String prog2 = Modules.PROG2;
+    private String pa2 = Modules.PA2;
+    private String filter = "";
+    private int programs = 2000;
+    private long seed = 1;
+    private int failures;
+
+    public static void main(String[] args) throws Throwable {
+        Check check = new Check();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--prog2": check.prog2 = args[++i]; break;
+                case "--pa2": check.pa2 = args[++i]; break;
+                case "--filter": check.filter = args[++i]; break;
+                case "--programs": check.programs = Integer.parseInt(args[++i]); break;
+                case "--seed": check.seed = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        Modules.check("--prog2", check.prog2, "PROG2/src");
+        Modules.check("--pa2", check.pa2, "PA2_MS1/src");
+
+        Path directory = Files.createTempDirectory("check");
+        try {
+            check.incrementalChecks(directory);
+            check.undefinedLabelChecks(directory);
+            check.unknownDirectiveChecks(directory);
+            check.commentChecks(directory);
+            check.invalidDataChecks(directory);
+            check.metricsChecks(directory);
+            check.jitChecks(directory);
+        } finally {
+            delete(directory);
+        }
+        if (check.failures > 0) {
+            System.out.println(check.failures + " failed");
+            System.exit(1);
+        }
+    }
+
+    // --incremental against a fresh build after each edit. la of an undefined data label loads
+    // 0, and the cached line has to change once the label is defined and back once it is not.
+    // A data label that moves under an la has to change it too while a text label of the same
+    // name stays where it was
+    private void incrementalChecks(Path directory) throws IOException, InterruptedException {
+        incrementalCheck(directory, "prog2.incremental.undefined_label",
+                ".data\nt: .word 7\n.text\nmain: la $a0, foo\n",
+                ".data\nt: .word 7\nfoo: .asciiz \"cd\"\n.text\nmain: la $a0, foo\n",
+                ".data\nt: .word 7\n.text\nmain: la $a0, foo\n");
+        incrementalCheck(directory, "prog2.incremental.text_and_data_label",
+                ".data\nfoo: .word 7\n.text\nfoo: la $a0, foo\n    j foo\n",
+                ".data\nt: .word 1\nfoo: .word 7\n.text\nfoo: la $a0, foo\n    j foo\n");
+    }
+
+    private void incrementalCheck(Path directory, String name, String... edits)
+            throws IOException, InterruptedException {
+        if (!enabled(name)) return;
+        Path incremental = Files.createDirectory(directory.resolve(name + ".incremental"));
+        Path fresh = Files.createDirectory(directory.resolve(name + ".fresh"));
+        String mismatch = null;
+        for (int i = 0; i < edits.length && mismatch == null; i++) {
+            String expected = assemble(fresh, edits[i]);
+            String actual = assemble(incremental, edits[i], "--incremental");
+            if (!actual.equals(expected)) {
+                mismatch = "edit " + (i + 1) + ": " + words(actual) + " instead of " + words(expected);
+            }
+        }
+        report(name, mismatch, edits.length + " edits");
+    }
+
+    // A j or branch to a label that is defined nowhere, in every mode. Each has to fail with the
+    // error the default mode gives rather than encode the name as a number or throw something else
+    private void undefinedLabelChecks(Path directory) throws IOException, InterruptedException {
+        if (!enabled("prog2.undefined_label")) return;
+        String[][] sources = {
+                {"cafe", ".text\nmain: j cafe\n"},
+                {"nowhere", ".text\nmain: beq $t0, $zero, nowhere\n"},
+                {"nowhere", ".text\nmain: blt $t0, $t1, nowhere\n"},
+        };
+        Path undefined = Files.createDirectory(directory.resolve("undefined"));
+        String mismatch = null;
+        for (int i = 0; i < sources.length && mismatch == null; i++) {
+            String expected = "Error: Undefined label: " + sources[i][0];
+            mismatch = inEveryMode(undefined, sources[i][1], List.of(), List.of(), (output, data) ->
+                    output.status == 0 || !output.text.contains(expected) ? status(output) : null);
+        }
+        report("prog2.undefined_label", mismatch, sources.length + " sources in " + MODES.length + " modes");
+    }
+
+    // A data directive PROG2 does not know is skipped with a warning in every mode, as it always
+    // was, and the data is what it is without that line
+    private void unknownDirectiveChecks(Path directory) throws IOException, InterruptedException {
+        if (!enabled("prog2.data.unknown_directive")) return;
+        String source = ".data\n.globl main\nt: .word 7\nu: .extern \"x\"\n.text\nmain: la $a0, t\n";
+        Path unknown = Files.createDirectory(directory.resolve("unknown"));
+        Path plain = Files.createDirectory(directory.resolve("plain"));
+        assemble(plain, source.replace(".globl main\n", "").replace("u: .extern \"x\"\n", "u:\n"));
+        String expected = Files.readString(plain.resolve("p.data"));
+        String mismatch = inEveryMode(unknown, source, List.of(), List.of(), (output, data) ->
+                output.status != 0 || !output.text.contains("Ignoring unknown data directive .globl")
+                        || !data.equals(expected) ? status(output) + ", data " + words(data) : null);
+        report("prog2.data.unknown_directive", mismatch, MODES.length + " modes");
+    }
+
+    // A comment after a string that quotes something, and a '#' inside the string, in every mode.
+    // The data is what it is without the comment
+    private void commentChecks(Path directory) throws IOException, InterruptedException {
+        if (!enabled("prog2.data.comment_quote")) return;
+        String source = ".data\ns: .asciiz \"a#b\" # say \"hi\"\nt: .word 7\n.text\nmain: la $a0, t\n";
+        Path comment = Files.createDirectory(directory.resolve("comment"));
+        Path plain = Files.createDirectory(directory.resolve("uncommented"));
+        assemble(plain, source.replace(" # say \"hi\"", ""));
+        String expected = Files.readString(plain.resolve("p.data"));
+        String mismatch = inEveryMode(comment, source, List.of(), List.of(), (output, data) ->
+                output.status != 0 || !data.equals(expected) ? status(output) + ", data " + words(data) : null);
+        report("prog2.data.comment_quote", mismatch, MODES.length + " modes");
+    }
+
+    // A data value PROG2 cannot store, in every mode. Each has to fail with a message naming the
+    // line, not a stack trace
+    private void invalidDataChecks(Path directory) throws IOException, InterruptedException {
+        if (!enabled("prog2.data.invalid_value")) return;
+        String[][] sources = {
+                {"line 3: Value out of range for .byte: 300",
+                        ".data\nt: .word 7\nb: .byte 300\n.text\nmain: la $a0, t\n"},
+                {"line 2: Labels are not supported as .word values: tab",
+                        ".data\nptr: .word tab\ntab: .word 1\n.text\nmain: la $a0, tab\n"},
+                {"line 2: Not a number: 12x", ".data\nt: .half 12x\n.text\nmain: la $a0, t\n"},
+        };
+        Path invalid = Files.createDirectory(directory.resolve("invalid"));
+        String mismatch = null;
+        for (int i = 0; i < sources.length && mismatch == null; i++) {
+            String expected = "Error: " + sources[i][0];
+            mismatch = inEveryMode(invalid, sources[i][1], List.of(), List.of(), (output, data) ->
+                    output.status == 0 || !output.text.strip().equals(expected) ? status(output) : null);
+        }
+        report("prog2.data.invalid_value", mismatch, sources.length + " sources in " + MODES.length + " modes");
+    }
+
+    // --metrics under a locale that writes decimal commas, in every mode that reports phases.
+    // The file has to parse as JSON
+    private void metricsChecks(Path directory) throws IOException, InterruptedException {
+        if (!enabled("prog2.metrics.json")) return;
+        String source = ".data\nt: .word 7\n.text\nmain: li $t0, 70000\n    la $a0, t\nloop: bne $t0, $zero, loop\n";
+        Path metrics = Files.createDirectory(directory.resolve("metrics"));
+        String mismatch = inEveryMode(metrics, source, List.of("-Duser.language=de", "-Duser.country=DE"),
+                List.of("--metrics", "m.json"), (output, data) -> {
+                    if (output.status != 0) return status(output);
+                    try {
+                        new Json(Files.readString(metrics.resolve("m.json"))).parse();
+                        return null;
+                    } catch (IllegalArgumentException e) {
+                        return e.getMessage();
+                    }
+                });
+        report("prog2.metrics.json", mismatch, MODES.length + " modes in de_DE");
+    }
+
+    // Assembles source as p.asm in directory in every mode of MODES, with options before the
+    // file, and returns the first mismatch expectation finds, naming the mode and the source
+    private String inEveryMode(Path directory, String source, List<String> jvmOptions, List<String> options,
+                               Expectation expectation) throws IOException, InterruptedException {
+        Files.writeString(directory.resolve("p.asm"), source);
+        for (String[] mode : MODES) {
+            List<String> arguments = new ArrayList<>(Arrays.asList(mode));
+            arguments.addAll(options);
+            arguments.add("p.asm");
+            Files.deleteIfExists(directory.resolve("p.data"));
+            Output output = prog2(directory, jvmOptions, arguments);
+            Path dataFile = directory.resolve("p.data");
+            String mismatch = expectation.mismatch(output, Files.exists(dataFile) ? Files.readString(dataFile) : "");
+            if (mismatch != null) return arguments + " on " + words(source) + ": " + mismatch;
+        }
+        return null;
+    }
+
+    // Exit status and first line of output of a PROG2 run, for a mismatch
+    private static String status(Output output) {
+        return "exit status " + output.status + ", " + words(output.text.lines().findFirst().orElse(""));
+    }
+
+    // The Jit against the interpreter. The registers, the instructions retired, the fault, the
+    // output and the words at the data and stack pointers have to match after each run
+    private void jitChecks(Path directory) throws Throwable {
+        Machines machines = null;
+        if (enabled("pa2.jit.random_words")) {
+            machines = new Machines(pa2);
+            String mismatch = null;
+            int compiled = 0;
+            for (int i = 0; i < programs && mismatch == null; i++) {
+                Random random = new Random(seed + i);
+                int[] text = randomProgram(random);
+                long limit = 1 + random.nextInt(300_000);
+                String interpreted = machines.run(text, new int[0], limit, false);
+                String jitted = machines.run(text, new int[0], limit, true);
+                if (machines.compiledBlocks > 0) compiled++;
+                if (!jitted.equals(interpreted)) {
+                    mismatch = "seed " + (seed + i) + ": " + jitted + " instead of " + interpreted;
+                }
+            }
+            report("pa2.jit.random_words", mismatch, compiled + " of " + programs + " ran compiled blocks");
+        }
+
+        // Bench's 5000 line program, a maze of branches that stores below $sp, a loop that loads
+        // its way up to 0x80000000 and faults inside a compiled block, loops whose add or sub
+        // to $zero overflows once the block is compiled, and loops tested at the top, whose
+        // blocks are too short alone and only compile as one region. The last of them leaves
+        // the region by a bne inside it most of the time. Those with a fault expected have to
+        // fault, and every one of them has to compile a block
+        String[][] cases = {
+                {"pa2.jit.synthetic_5k", String.join("\n", Bench.syntheticProgram(5000)), "20000000", ""},
+                {"pa2.jit.load_fault", ".data\nb: .asciiz \"x\"\n.text\n    lui $s0, 0x7ff0\n"
+                        + "loop: lw $t0, 0($s0)\n    addiu $t1, $t1, 1\n    addiu $s0, $s0, 4\n"
+                        + "    bne $t1, $zero, loop\n", "10000000", "Bad load address"},
+                {"pa2.jit.add_to_zero", ".text\n    lui $t0, 0x3fff\n"
+                        + "loop: addiu $t0, $t0, 16\n    add $zero, $t0, $t0\n    addiu $t1, $t1, 1\n"
+                        + "    bne $t1, $zero, loop\n", "1000000", "Arithmetic overflow"},
+                {"pa2.jit.sub_to_zero", ".text\n    lui $t0, 0x3fff\n    lui $t2, 0xc001\n"
+                        + "loop: addiu $t0, $t0, 16\n    sub $zero, $t2, $t0\n    addiu $t1, $t1, 1\n"
+                        + "    bne $t1, $zero, loop\n", "1000000", "Arithmetic overflow"},
+                {"pa2.jit.top_tested_loop", ".text\n    li $t0, 100000\n"
+                        + "loop: beq $t0, $zero, done\n    addiu $t0, $t0, -1\n    addiu $t1, $t1, 2\n"
+                        + "    j loop\ndone: addiu $t2, $t1, 1\n", "2000000", "none"},
+                {"pa2.jit.region_side_exit", ".data\nn: .word 0\n.text\n    li $t0, 100000\n    la $s0, n\n"
+                        + "loop: beq $t0, $zero, done\n    addiu $t0, $t0, -1\n    andi $t2, $t0, 7\n"
+                        + "    bne $t2, $zero, skip\n    addiu $t1, $t1, 1\nskip: sw $t1, 0($s0)\n    j loop\n"
+                        + "done: addiu $t3, $t1, 5\n", "2000000", "none"},
+        };
+        for (String[] c : cases) {
+            if (!enabled(c[0])) continue;
+            if (machines == null) machines = new Machines(pa2);
+            Path program = Files.createDirectories(directory.resolve(c[0]));
+            int[] text = hexWords(assemble(program, c[1]));
+            int[] data = hexWords(Files.readString(program.resolve("p.data")));
+            long limit = Long.parseLong(c[2]);
+            String interpreted = machines.run(text, data, limit, false);
+            String jitted = machines.run(text, data, limit, true);
+            String mismatch = jitted.equals(interpreted) ? null : jitted + " instead of " + interpreted;
+            String fault = interpreted.substring("fault ".length(), interpreted.indexOf(", retired"));
+            if (mismatch == null && !fault.startsWith(c[3])) mismatch = "fault " + fault + " instead of " + c[3];
+            if (mismatch == null && machines.compiledBlocks == 0) mismatch = "no block compiled";
+            report(c[0], mismatch, machines.compiledBlocks + " blocks compiled");
+        }
+    }
+
+    // Word programs of 6 to 65 instructions on $zero and $t0-$t7, loading and storing the 16
+    // words at $s0, which a first lui points at the data segment. Branches and jumps land
+    // anywhere in the program or just past it, and some of them loop
+    private static int[] randomProgram(Random random) {
+        int n = 5 + random.nextInt(60);
+        int[] text = new int[n + 1];
+        text[0] = 0x3c100000 | DATA_ADDRESS >>> 16; // lui $s0, 0x1001
+        for (int i = 0; i < n; i++) {
+            int rs = randomRegister(random);
+            int rt = randomRegister(random);
+            int rd = randomRegister(random);
+            int immediate = random.nextInt(0x10000);
+            int offset = (random.nextInt(n + 2) - i - 1) & 0xFFFF;
+            int word;
+            switch (random.nextInt(14)) {
+                case 0: word = rs << 21 | rt << 16 | rd << 11 | 0x20; break; // add
+                case 1: word = rs << 21 | rt << 16 | rd << 11 | 0x22; break; // sub
+                case 2: word = rs << 21 | rt << 16 | rd << 11 | 0x24; break; // and
+                case 3: word = rs << 21 | rt << 16 | rd << 11 | 0x25; break; // or
+                case 4: word = rs << 21 | rt << 16 | rd << 11 | 0x2a; break; // slt
+                case 5: word = 0x09 << 26 | rs << 21 | rt << 16 | immediate; break; // addiu
+                case 6: word = 0x0c << 26 | rs << 21 | rt << 16 | immediate; break; // andi
+                case 7: word = 0x0d << 26 | rs << 21 | rt << 16 | immediate; break; // ori
+                case 8: word = 0x0f << 26 | rt << 16 | immediate; break; // lui
+                case 9: word = 0x23 << 26 | 16 << 21 | rt << 16 | 4 * random.nextInt(16); break; // lw
+                case 10: word = 0x2b << 26 | 16 << 21 | rt << 16 | 4 * random.nextInt(16); break; // sw
+                case 11: word = 0x04 << 26 | rs << 21 | rt << 16 | offset; break; // beq
+                case 12: word = 0x05 << 26 | rs << 21 | rt << 16 | offset; break; // bne
+                default: word = 0x02 << 26 | (0x00400000 >>> 2) + 1 + random.nextInt(n + 1); break; // j
+            }
+            text[1 + i] = word;
+        }
+        return text;
+    }
+
+    private static int randomRegister(Random random) {
+        int k = random.nextInt(9);
+        return k == 8 ? 0 : 8 + k;
+    }
+
+    private static int[] hexWords(String file) {
+        String[] lines = file.strip().split("\n");
+        if (lines.length == 1 && lines[0].isEmpty()) return new int[0];
+        int[] words = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            words[i] = Integer.parseUnsignedInt(lines[i].strip(), 16);
+        }
+        return words;
+    }
+
+    // Assembles source as p.asm in directory with PROG2 and returns the .text it wrote
+    private String assemble(Path directory, String source, String... options)
+            throws IOException, InterruptedException {
+        Files.writeString(directory.resolve("p.asm"), source);
+        List<String> arguments = new ArrayList<>(Arrays.asList(options));
+        arguments.add("p.asm");
+        Output output = prog2(directory, List.of(), arguments);
+        if (output.status != 0) {
+            throw new IllegalStateException("Exit status " + output.status + " from PROG2 " + arguments + ": "
+                    + output.text.strip());
+        }
+        return Files.readString(directory.resolve("p.text"));
+    }
+
+    // Runs PROG2 in directory with the JVM options and arguments given
+    private Output prog2(Path directory, List<String> jvmOptions, List<String> arguments)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(java));
+        command.addAll(jvmOptions);
+        command.addAll(List.of("-cp", Paths.get(prog2).toAbsolutePath().toString(), "Main"));
+        command.addAll(arguments);
+        Process process = new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true).start();
+        String text = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        return new Output(process.waitFor(), text);
+    }
+
+    private boolean enabled(String name) {
+        return name.contains(filter);
+    }
+
+    // mismatch is null when the check passed, detail says what it covered
+    private void report(String name, String mismatch, String detail) {
+        if (mismatch != null) failures++;
+        System.out.printf("%-50s %s%n", name, mismatch == null ? "ok, " + detail : "FAILED, " + mismatch);
+    }
+
+    private static String words(String text) {
+        return text.strip().replace('\n', ' ');
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (var files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Strict JSON syntax (RFC 8259), enough to tell a valid document from an invalid one
+    static final class Json {
+        private final String text;
+        private int position;
+
+        Json(String text) {
+            this.text = text;
+        }
+
+        void parse() {
+            value();
+            blanks();
+            if (position != text.length()) throw error("end of document");
+        }
+
+        private void value() {
+            blanks();
+            if (position == text.length()) throw error("a value");
+            char c = text.charAt(position);
+            if (c == '{') {
+                members('}', true);
+            } else if (c == '[') {
+                members(']', false);
+            } else if (c == '"') {
+                string();
+            } else if (c == '-' || c >= '0' && c <= '9') {
+                number();
+            } else if (!literal("true") && !literal("false") && !literal("null")) {
+                throw error("a value");
+            }
+        }
+
+        // An object's members or an array's elements, from the opening bracket to close
+        private void members(char close, boolean named) {
+            position++;
+            blanks();
+            if (next(close)) return;
+            do {
+                if (named) {
+                    blanks();
+                    if (position == text.length() || text.charAt(position) != '"') throw error("a name");
+                    string();
+                    blanks();
+                    if (!next(':')) throw error("':'");
+                }
+                value();
+                blanks();
+            } while (next(','));
+            if (!next(close)) throw error("',' or '" + close + "'");
+        }
+
+        private void string() {
+            position++;
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') return;
+                if (c < ' ') throw error("no control character");
+                if (c == '\\') {
+                    if (position == text.length()) break;
+                    char escape = text.charAt(position++);
+                    if (escape == 'u') {
+                        for (int i = 0; i < 4; i++) {
+                            if (position == text.length() || Character.digit(text.charAt(position++), 16) < 0) {
+                                throw error("4 hex digits");
+                            }
+                        }
+                    } else if ("\"\\/bfnrt".indexOf(escape) < 0) {
+                        throw error("an escape");
+                    }
+                }
+            }
+            throw error("'\"'");
+        }
+
+        private void number() {
+            next('-');
+            if (!next('0') && digits() == 0) throw error("a digit");
+            if (next('.') && digits() == 0) throw error("a digit");
+            if (next('e') || next('E')) {
+                if (!next('+')) next('-');
+                if (digits() == 0) throw error("a digit");
+            }
+        }
+
+        private int digits() {
+            int start = position;
+            while (position < text.length() && text.charAt(position) >= '0' && text.charAt(position) <= '9') {
+                position++;
+            }
+            return position - start;
+        }
+
+        private boolean literal(String word) {
+            if (!text.startsWith(word, position)) return false;
+            position += word.length();
+            return true;
+        }
+
+        private boolean next(char c) {
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void blanks() {
+            while (position < text.length() && " \t\r\n".indexOf(text.charAt(position)) >= 0) position++;
+        }
+
+        private IllegalArgumentException error(String expected) {
+            int line = 1;
+            for (int i = 0; i < position && i < text.length(); i++) {
+                if (text.charAt(i) == '\n') line++;
+            }
+            return new IllegalArgumentException("invalid JSON, expected " + expected + " at line " + line + ": "
+                    + text.lines().skip(line - 1).findFirst().orElse("").strip());
+        }
+    }
+
+    // What one run of PROG2 is expected to do, given its output and the .data file it wrote.
+    // Returns null when it did, otherwise what went wrong
+    interface Expectation {
+        String mismatch(Output output, String data) throws IOException;
+    }
+
+    // Exit status and output, stdout and stderr together, of a process
+    static final class Output {
+        final int status;
+        final String text;
+
+        Output(int status, String text) {
+            this.status = status;
+            this.text = text;
+        }
+    }
+
+    // PA2_MS1's Machine, loaded from its compiled output in its own class loader and called
+    // through method handles, as Bench does
+    static final class Machines {
+        private final MethodHandle newMachine;
+        private final MethodHandle newMemory;
+        private final MethodHandle write;
+        private final MethodHandle enableJit;
+        private final MethodHandle run;
+        private final MethodHandle register;
+        private final MethodHandle retired;
+        private final MethodHandle load;
+        private final MethodHandle compiled;
+        int compiledBlocks; // By the last run
+
+        Machines(String outputDirectory) throws Exception {
+            URL url = Paths.get(outputDirectory).toUri().toURL();
+            ClassLoader loader = new URLClassLoader(new URL[]{url}, ClassLoader.getPlatformClassLoader());
+            Class<?> machine = Class.forName("Machine", true, loader);
+            Class<?> memory = Class.forName("Memory", true, loader);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(machine, MethodHandles.lookup());
+            newMachine = lookup.findConstructor(machine, MethodType.methodType(void.class, int[].class, int.class,
+                    memory, ReadableByteChannel.class, WritableByteChannel.class));
+            newMemory = lookup.findConstructor(memory, MethodType.methodType(void.class));
+            write = lookup.findVirtual(memory, "write", MethodType.methodType(void.class, int.class, int[].class,
+                    int.class));
+            enableJit = lookup.findVirtual(machine, "enableJit", MethodType.methodType(void.class));
+            run = lookup.findVirtual(machine, "run", MethodType.methodType(long.class, long.class));
+            register = lookup.findVirtual(machine, "register", MethodType.methodType(int.class, int.class));
+            retired = lookup.findVirtual(machine, "retired", MethodType.methodType(long.class));
+            load = lookup.findVirtual(machine, "load", MethodType.methodType(int.class, int.class));
+            compiled = lookup.findVirtual(machine, "compiledBlocks", MethodType.methodType(int.class));
+        }
+
+        // Runs text for at most limit instructions, with data at DATA_ADDRESS and no input, and
+        // describes where it stopped
+        String run(int[] text, int[] data, long limit, boolean jit) throws Throwable {
+            Object memory = newMemory.invoke();
+            write.invoke(memory, DATA_ADDRESS, data, data.length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Object machine = newMachine.invoke(text, text.length, memory,
+                    Channels.newChannel(InputStream.nullInputStream()), Channels.newChannel(out));
+            if (jit) enableJit.invoke(machine);
+            String fault = "none";
+            try {
+                run.invoke(machine, limit);
+            } catch (IllegalStateException e) {
+                fault = e.getMessage();
+            }
+            compiledBlocks = (int) compiled.invoke(machine);
+            StringBuilder state = new StringBuilder("fault ").append(fault)
+                    .append(", retired ").append((long) retired.invoke(machine))
+                    .append(", output \"").append(out.toString(StandardCharsets.UTF_8)).append("\", registers");
+            for (int k = 0; k < 32; k++) {
+                state.append(' ').append((int) register.invoke(machine, k));
+            }
+            state.append(", data");
+            for (int k = 0; k < 16; k++) {
+                state.append(' ').append((int) load.invoke(machine, DATA_ADDRESS + 4 * k));
+            }
+            state.append(", stack");
+            for (int k = 0; k < 64; k++) {
+                state.append(' ').append((int) load.invoke(machine, STACK_POINTER - 4 * k));
+            }
+            return state.toString();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+// Compiled classes of the three tools for Bench, Check and Startup. The defaults are the jars
+// the mips launcher builds, so run ./mips build first. --prog1, --prog2 and --pa2 take any
+// other directory or jar holding a tool's classes. The out/production directories in the tree
+// hold classes of the original code and are never a default. Whatever is used has to be newer
+// than every source file of its tool, or the tools would measure or check older code
+final class Modules {
+    static final String PROG1 = "build/prog1.jar";
+    static final String PROG2 = "build/prog2.jar";
+    static final String PA2 = "build/pa2.jar";
+
+    private Modules() {
+    }
+
+    // Returns classes, a directory or jar for the tool whose sources are in sourceDirectory, or
+    // exits with a message naming option when it is missing or older than those sources
+    static String check(String option, String classes, String sourceDirectory) {
+        Path path = Paths.get(classes);
+        Path main = Files.isDirectory(path) ? path.resolve("Main.class") : path;
+        String rebuild = classes.startsWith("build/") ? "run ./mips build" : "rebuild it or pass " + option;
+        if (!Files.isRegularFile(main)) {
+            fail("No compiled classes for " + option + " at " + classes + ", " + rebuild);
+        }
+        try {
+            FileTime compiled = Files.getLastModifiedTime(main);
+            Optional<Path> newer;
+            try (Stream<Path> sources = Files.list(Paths.get(sourceDirectory))) {
+                newer = sources.filter(source -> source.toString().endsWith(".java"))
+                        .filter(source -> modified(source).compareTo(compiled) > 0)
+                        .findFirst();
+            }
+            if (newer.isPresent()) {
+                fail(classes + " is older than " + newer.get() + ", " + rebuild);
+            }
+        } catch (IOException e) {
+            fail("Cannot read " + sourceDirectory + ": " + e.getMessage() + ", run from the repository root");
+        }
+        return classes;
+    }
+
+    private static FileTime modified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void fail(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+}
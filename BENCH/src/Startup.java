@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Startup benchmark: every tool is started as a new process, the way a build runs it, once as a
+// plain java command on its compiled output and once through the mips launcher with its AppCDS
+// archive. Run from the repository root. By default the plain runs use the launcher's own jars,
+// other compiled classes can be given instead:
+//
+//   java -cp BENCH/out Startup [--prog1 dir] [--prog2 dir] [--pa2 dir] [--launcher ./mips] [--runs N]
+//
+// Reports, over N runs after two warmups, the median and the best time to the first byte of
+// output (stdout and stderr together) and to the exit of the process. PROG2 only writes files,
+// so its first output is its exit. The launcher builds its jars and archives before the first
+// measurement and before the classes are checked, so the numbers never include a rebuild.
+public class Startup {
+    private static final String PROGRAM = String.join("\n",
+            ".data",
+            "message: .asciiz \"counted \"",
+            ".text",
+            "main: li $t0, 0",
+            "      li $t1, 100",
+            "loop: addiu $t0, $t0, 1",
+            "      bne $t0, $t1, loop",
+            "      la $a0, message",
+            "      li $v0, 4",
+            "      syscall",
+            "      move $a0, $t0",
+            "      li $v0, 1",
+            "      syscall",
+            "      li $v0, 10",
+            "      syscall",
+            "");
+
+    private final List<Result> results = new ArrayList<>();
+    private int runs = 20;
+
+    public static void main(String[] args) throws Exception {
+        String prog1 = Modules.PROG1;
+        String prog2 = Modules.PROG2;
+        String pa2 = Modules.PA2;
+        String launcher = "./mips";
+        Startup startup = new Startup();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--prog1": prog1 = args[++i]; break;
+                case "--prog2": prog2 = args[++i]; break;
+                case "--pa2": pa2 = args[++i]; break;
+                case "--launcher": launcher = args[++i]; break;
+                case "--runs": startup.runs = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        startup.time(List.of(launcher, "build"), 1, null);
+        Modules.check("--prog1", prog1, "PROG1/src");
+        Modules.check("--prog2", prog2, "PROG2/src");
+        Modules.check("--pa2", pa2, "PA2_MS1/src");
+
+        Path directory = Files.createTempDirectory("startup");
+        Path source = directory.resolve("count.asm");
+        Files.writeString(source, PROGRAM);
+        Path text = directory.resolve("count.text");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        startup.time(List.of(java, "-cp", prog2, "Main", source.toString()), 1, null); // For the .text
+
+        String[][] cases = {
+                {"prog1.assemble.add", prog1, "prog1", "add $t0, $t1, $t2"},
+                {"prog2.assemble.count", prog2, "prog2", source.toString()},
+                {"pa2.disassemble.word", pa2, "pa2", "012a4020"},
+                {"pa2.run.count", pa2, "pa2", "--run", text.toString()},
+        };
+        for (String[] c : cases) {
+            List<String> arguments = Arrays.asList(c).subList(3, c.length);
+            List<String> plain = new ArrayList<>(List.of(java, "-cp", c[1], "Main"));
+            plain.addAll(arguments);
+            List<String> launched = new ArrayList<>(List.of(launcher, c[2]));
+            launched.addAll(arguments);
+            startup.measure(c[0] + ".java", plain);
+            startup.measure(c[0] + ".launcher", launched);
+        }
+
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+        startup.print(System.out);
+    }
+
+    private void measure(String name, List<String> command) throws IOException, InterruptedException {
+        long[] first = new long[runs];
+        long[] exit = new long[runs];
+        time(command, 2, null);
+        for (int i = 0; i < runs; i++) {
+            long[] times = new long[2];
+            time(command, 1, times);
+            first[i] = times[0];
+            exit[i] = times[1];
+        }
+        results.add(new Result(name, first, exit));
+        System.err.printf("%-50s done%n", name);
+    }
+
+    // Starts the command count times, filling times with the nanoseconds to the first byte of
+    // output and to the exit of the last one
+    private void time(List<String> command, int count, long[] times) throws IOException, InterruptedException {
+        for (int i = 0; i < count; i++) {
+            ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+            long start = System.nanoTime();
+            Process process = builder.start();
+            process.getOutputStream().close();
+            long firstByte = -1;
+            try (InputStream out = process.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                for (int read = out.read(buffer); read >= 0; read = out.read(buffer)) {
+                    if (firstByte < 0 && read > 0) firstByte = System.nanoTime();
+                }
+            }
+            int status = process.waitFor();
+            long end = System.nanoTime();
+            if (status != 0) {
+                throw new IllegalStateException("Exit status " + status + " from " + String.join(" ", command));
+            }
+            if (times != null) {
+                times[0] = (firstByte < 0 ? end : firstByte) - start;
+                times[1] = end - start;
+            }
+        }
+    }
+
+    private void print(PrintStream out) {
+        out.printf("%-50s %5s %14s %14s %14s %14s%n", "Benchmark", "Cnt", "First median", "First best",
+                "Exit median", "Exit best");
+        for (Result result : results) {
+            out.printf("%-50s %5d %11.1f ms %11.1f ms %11.1f ms %11.1f ms%n", result.name, result.first.length,
+                    median(result.first) / 1e6, best(result.first) / 1e6, median(result.exit) / 1e6,
+                    best(result.exit) / 1e6);
+        }
+    }
+
+    private static double median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+
+    private static long best(long[] values) {
+        return Arrays.stream(values).min().orElse(0);
+    }
+
+    static class Result {
+        final String name;
+        final long[] first;
+        final long[] exit;
+
+        Result(String name, long[] first, long[] exit) {
+            this.name = name;
+            this.first = first;
+            this.exit = exit;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Many runs of one program, for regression and fuzz inputs: --run --instances dir. The text is
+// decoded once into a Machine.Program, and the text and data segments are loaded once into a
+// frozen Memory. Every file of the directory is then the standard input of one instance, with
+// registers of its own and a fork of that memory, so it only copies the pages it stores into.
+// Instances are the tasks of a work-stealing ForkJoinPool. Each keeps its output and counts to
+// itself in its own Result, and the results are only read once the pool is done, so the
+// threads share nothing they write
+final class Batch {
+    // Outcome of one instance
+    static final class Result {
+        final String name;
+        int status;
+        long retired;
+        long outputBytes;
+        long checksum; // CRC-32 of the output
+        String error;  // Runtime error, or null
+
+        Result(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Machine.Program program;
+    private final Memory memory;
+    private final long limit;
+    private final Path outputs;
+
+    // memory holds the text and data segments, and is frozen here
+    Batch(Machine.Program program, Memory memory, long limit, Path outputs) {
+        this.program = program;
+        this.memory = memory;
+        this.limit = limit;
+        this.outputs = outputs;
+        memory.freeze();
+    }
+
+    // Runs one instance per file of inputs, in name order. Returns the exit status for the
+    // whole batch: 0 when every instance exited with 0, 1 otherwise
+    int run(Path inputs, int threads, Path resultsFile) throws IOException {
+        List<Path> files;
+        try (Stream<Path> entries = Files.list(inputs)) {
+            files = entries.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        Result[] results = new Result[files.size()];
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new InstanceTask(files, results, 0, files.size()));
+        } finally {
+            pool.shutdown();
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+
+        long retired = 0;
+        int failed = 0;
+        for (Result result : results) {
+            retired += result.retired;
+            if (result.status != 0) {
+                failed++;
+                if (result.error != null) System.err.println(result.name + ": " + result.error);
+            }
+        }
+        if (resultsFile != null) {
+            writeResults(results, resultsFile);
+        }
+        System.err.printf("Instances: %d (%d exited with 0, %d did not)%n", results.length,
+                results.length - failed, failed);
+        System.err.printf("Instructions retired: %d (%.1f ms, %.1f MIPS on %d threads)%n", retired, nanos / 1e6,
+                retired * 1e3 / nanos, threads);
+        return failed == 0 ? 0 : 1;
+    }
+
+    private Result runInstance(Path input) {
+        Result result = new Result(input.getFileName().toString());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            Machine machine = new Machine(program, memory.fork(),
+                    Channels.newChannel(new ByteArrayInputStream(Files.readAllBytes(input))),
+                    Channels.newChannel(output));
+            try {
+                machine.run(limit);
+                result.status = machine.exitCode();
+            } catch (IllegalStateException e) {
+                result.error = "Runtime error: " + e.getMessage();
+                result.status = 1;
+            }
+            result.retired = machine.retired();
+            if (outputs != null) {
+                Files.write(outputs.resolve(result.name + ".out"), output.toByteArray());
+            }
+        } catch (IOException e) {
+            result.error = "I/O error: " + e.getMessage();
+            result.status = 1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(output.toByteArray());
+        result.outputBytes = output.size();
+        result.checksum = crc.getValue();
+        return result;
+    }
+
+    // One line per instance: name, exit status, instructions retired, output size, output
+    // CRC-32 and the runtime error, tab separated
+    private static void writeResults(Result[] results, Path file) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file), false, StandardCharsets.UTF_8)) {
+            out.println("name\tstatus\tretired\toutput_bytes\toutput_crc32\terror");
+            for (Result result : results) {
+                out.printf("%s\t%d\t%d\t%d\t%08x\t%s%n", result.name, result.status, result.retired,
+                        result.outputBytes, result.checksum, result.error == null ? "" : result.error);
+            }
+        }
+    }
+
+    // Splits the instances in halves down to single ones, idle threads steal the halves. Never
+    // serialized
+    @SuppressWarnings("serial")
+    private final class InstanceTask extends RecursiveAction {
+        private final List<Path> files;
+        private final Result[] results;
+        private final int from;
+        private final int to;
+
+        InstanceTask(List<Path> files, Result[] results, int from, int to) {
+            this.files = files;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                results[from] = runInstance(files.get(from));
+            } else if (to > from) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new InstanceTask(files, results, from, middle),
+                        new InstanceTask(files, results, middle, to));
+            }
+        }
+    }
+}
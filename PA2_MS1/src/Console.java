@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+// Standard input and output of a running program, for its syscalls. Output is formatted into
+// one reusable byte array and written through the channel only when the array fills, when the
+// program has to wait for input and when a run stops, so a loop of print_int costs a few array
+// stores per number and a write per BUFFER_SIZE bytes. Input is read a BUFFER_SIZE block at a
+// time, and read_int and read_string take their lines straight out of the block. Strings are
+// copied between the pages of the Memory and the buffers without a String in between
+final class Console {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] TERMINATOR = {0};
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private final ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+    private int outputLength;
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+    private int inputPosition;
+    private int inputLimit;
+    private boolean inputEnded;
+    private byte[] line = new byte[64]; // The line read_int parses, grown for long ones
+
+    Console(ReadableByteChannel in, WritableByteChannel out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    // print_int, in decimal
+    void printInt(int value) throws IOException {
+        if (BUFFER_SIZE - outputLength < 11) flush(); // "-2147483648"
+        long rest = value;
+        if (rest < 0) {
+            output[outputLength++] = '-';
+            rest = -rest;
+        }
+        int end = outputLength + digits(rest);
+        for (int i = end - 1; i >= outputLength; i--) {
+            output[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        outputLength = end;
+    }
+
+    // print_char, the low byte of value
+    void printChar(int value) throws IOException {
+        if (outputLength == BUFFER_SIZE) flush();
+        output[outputLength++] = (byte) value;
+    }
+
+    // print_string. The bytes go from the pages straight into the output buffer, a page or a
+    // buffer at a time, and every page the string reaches must be one a program may load from
+    void printString(Memory memory, int address) throws IOException {
+        while (true) {
+            if (address < Machine.TEXT_ADDRESS) {
+                throw new IllegalStateException(String.format("Bad load address 0x%08x", address));
+            }
+            if (outputLength == BUFFER_SIZE) flush();
+            int copied = memory.loadString(address, output, outputLength, BUFFER_SIZE - outputLength);
+            if (copied < 0) {
+                outputLength += ~copied; // Up to the terminator
+                return;
+            }
+            outputLength += copied;
+            address += copied;
+        }
+    }
+
+    // read_int: the next line as a decimal number, with blanks around it. 0 at the end of input
+    int readInt() throws IOException {
+        int b = read();
+        if (b < 0) return 0;
+        int length = 0;
+        for (; b >= 0 && b != '\n'; b = read()) {
+            if (length == line.length) line = Arrays.copyOf(line, 2 * length);
+            line[length++] = (byte) b;
+        }
+        int start = 0;
+        while (start < length && line[start] <= ' ') start++;
+        while (length > start && line[length - 1] <= ' ') length--;
+        int i = start;
+        boolean negative = i < length && line[i] == '-';
+        if (i < length && (line[i] == '-' || line[i] == '+')) i++;
+        long value = 0;
+        boolean valid = i < length;
+        for (; valid && i < length; i++) {
+            int digit = line[i] - '0';
+            value = 10 * value + digit;
+            valid = digit >= 0 && digit <= 9 && value <= 0x80000000L;
+        }
+        if (negative) value = -value;
+        if (!valid || value != (int) value) {
+            throw new IllegalStateException("Invalid integer input: " + new String(line, start, length - start));
+        }
+        return (int) value;
+    }
+
+    // read_string, like fgets: the next line up to length - 1 bytes, with its newline when it
+    // fits, stored at address and terminated with a 0. The rest of a longer line is left for
+    // the next read
+    void readString(Memory memory, int address, int length) throws IOException {
+        if (length < 1) return;
+        int count = 0;
+        while (count < length - 1) {
+            if (inputPosition == inputLimit && !fill()) break;
+            int start = inputPosition;
+            int end = Math.min(inputLimit, start + length - 1 - count);
+            while (inputPosition < end && input[inputPosition++] != '\n') {
+                // Up to and including a newline
+            }
+            store(memory, address + count, input, start, inputPosition - start);
+            count += inputPosition - start;
+            if (input[inputPosition - 1] == '\n') break;
+        }
+        store(memory, address + count, TERMINATOR, 0, 1);
+    }
+
+    // Writes out what is buffered
+    void flush() throws IOException {
+        outputBuffer.limit(outputLength).position(0);
+        while (outputBuffer.hasRemaining()) {
+            out.write(outputBuffer);
+        }
+        outputLength = 0;
+    }
+
+    // Checks the whole range against where a program may store, then copies it into the pages
+    private static void store(Memory memory, int address, byte[] bytes, int offset, int length) {
+        if (address < Machine.WRITABLE_ADDRESS || address + length - 1 < Machine.WRITABLE_ADDRESS) {
+            throw new IllegalStateException(String.format("Bad store address 0x%08x", address));
+        }
+        memory.storeBytes(address, bytes, offset, length);
+    }
+
+    private int read() throws IOException {
+        if (inputPosition == inputLimit && !fill()) return -1;
+        return input[inputPosition++] & 0xFF;
+    }
+
+    // Reads the next block, once what was written so far is out, since the program may have
+    // prompted for it. Returns false at the end of input
+    private boolean fill() throws IOException {
+        if (inputEnded) return false;
+        flush();
+        inputBuffer.clear();
+        int read;
+        do {
+            read = in.read(inputBuffer);
+        } while (read == 0);
+        if (read < 0) {
+            inputEnded = true;
+            inputPosition = inputLimit = 0;
+            return false;
+        }
+        inputPosition = 0;
+        inputLimit = read;
+        return true;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,656 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Translates hot basic blocks of a Machine's decoded text into JVM classes. A block starts at
+// a leader (the entry point, a branch or jump target, or the word after beq, bne, j or
+// syscall) and ends with its beq, bne or j, just before a syscall, or where the next leader
+// starts. When the words after a leader reach a beq, bne or j back to it, falling through
+// every beq and bne on the way, they are compiled as one region instead: a loop tested at
+// the top is a short block ending in beq and another ending in j, neither worth compiling on
+// its own. A beq or bne inside a region leaves it when it branches. The generated run() keeps
+// the registers in locals, loops in place on the jump back, and returns the index of the next
+// block packed with the number of instructions retired. The class file is written by hand in
+// version 49, which needs no stack map frames, and defined as a hidden class next to Machine
+final class Jit {
+    // Compiled code for one block. r holds the registers, with r[32] and r[33] set to the
+    // faulting word index and the instructions retired before it when run() throws.
+    // Returns (instructions retired << 32) | next word index
+    interface Block {
+        long run(int[] r, Machine machine, int budget);
+    }
+
+    private static final int MAX_LENGTH = 512; // Keeps every method well under the 64 KB code limit
+    private static final int MIN_LENGTH = 4;   // Shorter blocks run faster in the interpreter unless they loop
+
+    // Locals of the generated run() after this, r and machine. Register k is in REGISTERS + k,
+    // and the exception a fault rethrows goes after the registers
+    private static final int MACHINE = 2;
+    private static final int BUDGET = 3;
+    private static final int ITERATION = 4;
+    private static final int MAX_ITERATIONS = 5;
+    private static final int INDEX = 6;
+    private static final int REGISTERS = 7;
+    private static final int EXCEPTION = REGISTERS + 32;
+    private static final int NEXT = EXCEPTION + 1; // Where a beq or bne inside a region left it
+
+    private final int[] code;
+    private final int textWords;
+    private final boolean[] leaders;
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private int compiled;
+
+    // code is the Machine's decoded text, four ints per word
+    Jit(int[] code, int textWords) {
+        this.code = code;
+        this.textWords = textWords;
+        leaders = new boolean[textWords + 1];
+        leaders[0] = true;
+        for (int i = 0; i < textWords; i++) {
+            int handler = code[4 * i];
+            if (handler == Machine.BEQ || handler == Machine.BNE || handler == Machine.J) {
+                int target = code[4 * i + 3];
+                if (target <= textWords) leaders[target] = true;
+                leaders[i + 1] = true;
+            } else if (handler == Machine.SYSCALL) {
+                leaders[i + 1] = true;
+            }
+        }
+    }
+
+    boolean isLeader(int index) {
+        return leaders[index];
+    }
+
+    int compiledBlocks() {
+        return compiled;
+    }
+
+    // Number of words in the block or loop region starting at a leader, 0 when it is not worth
+    // compiling
+    int blockLength(int start) {
+        int region = regionLength(start);
+        if (region > 0) return region;
+        int length = 0;
+        int handler = Machine.INVALID;
+        for (int i = start; i < textWords && length < MAX_LENGTH; i++) {
+            handler = code[4 * i];
+            if (handler == Machine.SYSCALL || handler == Machine.INVALID) break;
+            length++;
+            if (handler == Machine.BEQ || handler == Machine.BNE || handler == Machine.J || leaders[i + 1]) break;
+        }
+        return length >= MIN_LENGTH ? length : 0;
+    }
+
+    // Words from start to the first beq, bne or j back to start, 0 when a syscall or a j
+    // elsewhere comes first. A block that loops to itself is the region of one block
+    private int regionLength(int start) {
+        for (int i = start; i < textWords && i - start < MAX_LENGTH; i++) {
+            int handler = code[4 * i];
+            if (handler == Machine.SYSCALL || handler == Machine.INVALID) return 0;
+            if (handler == Machine.BEQ || handler == Machine.BNE || handler == Machine.J) {
+                if (code[4 * i + 3] == start) return i - start + 1;
+                if (handler == Machine.J) return 0;
+            }
+        }
+        return 0;
+    }
+
+    Block compile(int start, int length) {
+        byte[] bytes = new BlockWriter(start, length).write();
+        try {
+            MethodHandles.Lookup block = lookup.defineHiddenClass(bytes, true);
+            compiled++;
+            return (Block) block.findConstructor(block.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot compile block at word " + start + ": " + e, e);
+        }
+    }
+
+    // Writes the class file of one block
+    private final class BlockWriter {
+        private final int start;
+        private final int length;
+        private final ConstantPool pool = new ConstantPool();
+        private final Bytecode body = new Bytecode();
+        private final boolean[] used = new boolean[32];
+        private final boolean[] written = new boolean[32];
+        // Exception table as {start, end, handler} bytecode offsets
+        private int[] handlers = new int[24];
+        private int handlerCount;
+
+        BlockWriter(int start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        byte[] write() {
+            for (int i = start; i < start + length; i++) {
+                markRegisters(i);
+            }
+            writeRun();
+
+            Bytecode out = new Bytecode();
+            int thisClass = pool.classRef("JitBlock");
+            int superClass = pool.classRef("java/lang/Object");
+            int blockInterface = pool.classRef("Jit$Block");
+            int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+            int codeName = pool.utf8("Code");
+            int initName = pool.utf8("<init>");
+            int initType = pool.utf8("()V");
+            int runName = pool.utf8("run");
+            int runType = pool.utf8("([ILMachine;I)J");
+
+            out.u4(0xCAFEBABE);
+            out.u2(0);
+            out.u2(49);
+            out.u2(pool.count);
+            out.bytes(pool.bytes.bytes, pool.bytes.length);
+            out.u2(0x0031); // public final super
+            out.u2(thisClass);
+            out.u2(superClass);
+            out.u2(1);
+            out.u2(blockInterface);
+            out.u2(0); // No fields
+            out.u2(2);
+
+            // Constructor
+            out.u2(0x0001);
+            out.u2(initName);
+            out.u2(initType);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + 5);
+            out.u2(1);
+            out.u2(1);
+            out.u4(5);
+            out.u1(0x2a); // aload_0
+            out.u1(0xb7); // invokespecial Object.<init>
+            out.u2(objectInit);
+            out.u1(0xb1); // return
+            out.u2(0);
+            out.u2(0);
+
+            // run
+            out.u2(0x0001);
+            out.u2(runName);
+            out.u2(runType);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + body.length + 8 * handlerCount);
+            out.u2(8);
+            out.u2(NEXT + 1);
+            out.u4(body.length);
+            out.bytes(body.bytes, body.length);
+            out.u2(handlerCount);
+            for (int i = 0; i < handlerCount; i++) {
+                out.u2(handlers[3 * i]);
+                out.u2(handlers[3 * i + 1]);
+                out.u2(handlers[3 * i + 2]);
+                out.u2(0); // Any exception
+            }
+            out.u2(0);
+
+            out.u2(0); // No class attributes
+            return Arrays.copyOf(out.bytes, out.length);
+        }
+
+        private void markRegisters(int i) {
+            int handler = code[4 * i];
+            int a = code[4 * i + 1];
+            int b = code[4 * i + 2];
+            switch (handler) {
+                case Machine.ADD:
+                case Machine.SUB:
+                case Machine.ADD_ZERO:
+                case Machine.SUB_ZERO:
+                case Machine.AND:
+                case Machine.OR:
+                case Machine.SLT:
+                    used[a] = used[b] = used[code[4 * i + 3]] = written[a] = true;
+                    break;
+                case Machine.ADDIU:
+                case Machine.ANDI:
+                case Machine.ORI:
+                case Machine.LW:
+                    used[a] = used[b] = written[a] = true;
+                    break;
+                case Machine.LUI:
+                    used[a] = written[a] = true;
+                    break;
+                case Machine.SW:
+                case Machine.BEQ:
+                case Machine.BNE:
+                    used[a] = used[b] = true;
+                    break;
+                default:
+                    break;
+            }
+            used[0] = written[0] = false; // $zero is always the constant 0
+        }
+
+        private void writeRun() {
+            Bytecode c = body;
+            for (int k = 1; k < 32; k++) {
+                if (!used[k]) continue;
+                c.u1(0x2b); // aload_1
+                push(k);
+                c.u1(0x2e); // iaload
+                c.local(0x36, REGISTERS + k); // istore
+            }
+            push(0);
+            c.local(0x36, ITERATION);
+            c.local(0x15, BUDGET);
+            push(length);
+            c.u1(0x6c); // idiv
+            c.local(0x36, MAX_ITERATIONS);
+
+            int loop = c.length;
+            int last = start + length - 1;
+            int[] faultRanges = new int[2 * length];
+            int[] sideExits = new int[length];
+            int sideExitCount = 0;
+            for (int i = start; i < last; i++) {
+                int handler = code[4 * i];
+                if (handler == Machine.BEQ || handler == Machine.BNE) {
+                    sideExits[sideExitCount++] = sideExit(i);
+                    continue;
+                }
+                int begin = c.length;
+                if (instruction(i)) {
+                    faultRanges[2 * (i - start)] = begin;
+                    faultRanges[2 * (i - start) + 1] = c.length;
+                }
+            }
+
+            // The last word decides where the block goes next
+            int handler = code[4 * last];
+            int target = code[4 * last + 3];
+            if (handler == Machine.BEQ || handler == Machine.BNE) {
+                int a = code[4 * last + 1];
+                int b = code[4 * last + 2];
+                int branch;
+                if (b == 0) {
+                    loadRegister(a);
+                    branch = c.jump(handler == Machine.BEQ ? 0x99 : 0x9a); // ifeq, ifne
+                } else {
+                    loadRegister(a);
+                    loadRegister(b);
+                    branch = c.jump(handler == Machine.BEQ ? 0x9f : 0xa0); // if_icmpeq, if_icmpne
+                }
+                exit(last + 1);
+                c.bind(branch);
+                taken(target, loop);
+            } else if (handler == Machine.J) {
+                taken(target, loop);
+            } else {
+                int begin = c.length;
+                if (instruction(last)) {
+                    faultRanges[2 * (length - 1)] = begin;
+                    faultRanges[2 * (length - 1) + 1] = c.length;
+                }
+                exit(last + 1);
+            }
+
+            // Taken beq and bne inside a region, with the words retired and the target in locals
+            if (sideExitCount > 0) {
+                for (int i = 0; i < sideExitCount; i++) {
+                    c.bind(sideExits[i]);
+                }
+                writeBack();
+                c.local(0x15, ITERATION);
+                push(length);
+                c.u1(0x68); // imul
+                c.local(0x15, INDEX);
+                c.u1(0x60); // iadd
+                c.u1(0x85); // i2l
+                push(32);
+                c.u1(0x79); // lshl
+                c.local(0x15, NEXT);
+                c.u1(0x85); // i2l
+                c.u1(0x81); // lor
+                c.u1(0xad); // lreturn
+            }
+
+            // One handler per word that can throw records its position, then all of them
+            // continue in the shared fault code
+            int[] stubJumps = new int[length];
+            for (int i = 0; i < length; i++) {
+                if (faultRanges[2 * i + 1] == 0) continue;
+                if (handlerCount * 3 == handlers.length) handlers = Arrays.copyOf(handlers, handlers.length * 2);
+                handlers[3 * handlerCount] = faultRanges[2 * i];
+                handlers[3 * handlerCount + 1] = faultRanges[2 * i + 1];
+                handlers[3 * handlerCount + 2] = c.length;
+                handlerCount++;
+                c.local(0x3a, EXCEPTION); // astore
+                push(i);
+                c.local(0x36, INDEX);
+                stubJumps[i] = c.jump(0xa7); // goto
+            }
+            if (handlerCount > 0) {
+                for (int i = 0; i < length; i++) {
+                    if (faultRanges[2 * i + 1] != 0) c.bind(stubJumps[i]);
+                }
+                writeFault();
+            }
+        }
+
+        // Writes back the registers and records where the block stopped, then rethrows
+        private void writeFault() {
+            Bytecode c = body;
+            writeBack();
+            c.u1(0x2b); // aload_1
+            push(32);
+            push(start);
+            c.local(0x15, INDEX);
+            c.u1(0x60); // iadd
+            c.u1(0x4f); // iastore
+            c.u1(0x2b); // aload_1
+            push(33);
+            c.local(0x15, ITERATION);
+            push(length);
+            c.u1(0x68); // imul
+            c.local(0x15, INDEX);
+            c.u1(0x60); // iadd
+            c.u1(0x4f); // iastore
+            c.local(0x19, EXCEPTION); // aload
+            c.u1(0xbf); // athrow
+        }
+
+        // A taken branch or jump. Jumping back to the start loops in place while the budget lasts
+        private void taken(int target, int loop) {
+            Bytecode c = body;
+            if (target != start) {
+                exit(target);
+                return;
+            }
+            c.iinc(ITERATION, 1);
+            c.local(0x15, ITERATION);
+            c.local(0x15, MAX_ITERATIONS);
+            c.bind(c.jump(0xa1), loop); // if_icmplt
+            writeBack();
+            c.local(0x15, ITERATION);
+            push(length);
+            c.u1(0x68); // imul
+            packAndReturn(start);
+        }
+
+        private void exit(int next) {
+            Bytecode c = body;
+            writeBack();
+            c.local(0x15, ITERATION);
+            push(1);
+            c.u1(0x60); // iadd
+            push(length);
+            c.u1(0x68); // imul
+            packAndReturn(next);
+        }
+
+        // A beq or bne at word i inside a region. Falls through to the next word when it is not
+        // taken, otherwise records the words retired in this iteration and the target and jumps
+        // to the shared exit. Returns that jump for bind
+        private int sideExit(int i) {
+            Bytecode c = body;
+            boolean beq = code[4 * i] == Machine.BEQ;
+            int a = code[4 * i + 1];
+            int b = code[4 * i + 2];
+            int notTaken;
+            loadRegister(a);
+            if (b == 0) {
+                notTaken = c.jump(beq ? 0x9a : 0x99); // ifne, ifeq
+            } else {
+                loadRegister(b);
+                notTaken = c.jump(beq ? 0xa0 : 0x9f); // if_icmpne, if_icmpeq
+            }
+            push(i - start + 1);
+            c.local(0x36, INDEX);
+            push(code[4 * i + 3]);
+            c.local(0x36, NEXT);
+            int taken = c.jump(0xa7); // goto
+            c.bind(notTaken);
+            return taken;
+        }
+
+        // Retired count on the stack, returns (count << 32) | next
+        private void packAndReturn(int next) {
+            Bytecode c = body;
+            c.u1(0x85); // i2l
+            push(32);
+            c.u1(0x79); // lshl
+            push(next);
+            c.u1(0x85); // i2l
+            c.u1(0x81); // lor
+            c.u1(0xad); // lreturn
+        }
+
+        private void writeBack() {
+            Bytecode c = body;
+            for (int k = 1; k < 32; k++) {
+                if (!written[k]) continue;
+                c.u1(0x2b); // aload_1
+                push(k);
+                c.local(0x15, REGISTERS + k);
+                c.u1(0x4f); // iastore
+            }
+        }
+
+        // Emits one non-branching word, returning whether it can throw
+        private boolean instruction(int i) {
+            Bytecode c = body;
+            int a = code[4 * i + 1];
+            int b = code[4 * i + 2];
+            int value = code[4 * i + 3];
+            switch (code[4 * i]) {
+                case Machine.ADD:
+                case Machine.SUB:
+                case Machine.ADD_ZERO:
+                case Machine.SUB_ZERO:
+                    // a is 0 for the _ZERO handlers, so the sum is popped once it has been checked
+                    loadRegister(b);
+                    loadRegister(value);
+                    c.u1(0xb8); // invokestatic
+                    boolean add = code[4 * i] == Machine.ADD || code[4 * i] == Machine.ADD_ZERO;
+                    c.u2(pool.methodRef("java/lang/Math", add ? "addExact" : "subtractExact", "(II)I"));
+                    storeRegister(a);
+                    return true;
+                case Machine.AND:
+                case Machine.OR:
+                    loadRegister(b);
+                    loadRegister(value);
+                    c.u1(code[4 * i] == Machine.AND ? 0x7e : 0x80); // iand, ior
+                    storeRegister(a);
+                    return false;
+                case Machine.SLT:
+                    // The sign of the 64-bit difference, so no branch is needed
+                    loadRegister(b);
+                    c.u1(0x85); // i2l
+                    loadRegister(value);
+                    c.u1(0x85);
+                    c.u1(0x65); // lsub
+                    push(63);
+                    c.u1(0x7d); // lushr
+                    c.u1(0x88); // l2i
+                    storeRegister(a);
+                    return false;
+                case Machine.ADDIU:
+                case Machine.ANDI:
+                case Machine.ORI:
+                    loadRegister(b);
+                    push(value);
+                    c.u1(code[4 * i] == Machine.ADDIU ? 0x60 : code[4 * i] == Machine.ANDI ? 0x7e : 0x80);
+                    storeRegister(a);
+                    return false;
+                case Machine.LUI:
+                    push(value);
+                    storeRegister(a);
+                    return false;
+                case Machine.LW:
+                    c.local(0x19, MACHINE);
+                    loadRegister(b);
+                    push(value);
+                    c.u1(0x60);
+                    c.u1(0xb6); // invokevirtual
+                    c.u2(pool.methodRef("Machine", "load", "(I)I"));
+                    storeRegister(a);
+                    return true;
+                case Machine.SW:
+                    c.local(0x19, MACHINE);
+                    loadRegister(b);
+                    push(value);
+                    c.u1(0x60);
+                    loadRegister(a);
+                    c.u1(0xb6);
+                    c.u2(pool.methodRef("Machine", "store", "(II)V"));
+                    return true;
+                default: // NOP
+                    return false;
+            }
+        }
+
+        private void push(int value) {
+            if (value >= -1 && value <= 5) {
+                body.u1(0x03 + value); // iconst_m1 to iconst_5
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                body.u1(0x10); // bipush
+                body.u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                body.u1(0x11); // sipush
+                body.u2(value);
+            } else {
+                body.u1(0x13); // ldc_w
+                body.u2(pool.integer(value));
+            }
+        }
+
+        private void loadRegister(int k) {
+            if (k == 0) {
+                push(0);
+            } else {
+                body.local(0x15, REGISTERS + k); // iload
+            }
+        }
+
+        private void storeRegister(int k) {
+            if (k == 0) {
+                body.u1(0x57); // pop, only a load, add or sub into $zero gets here
+            } else {
+                body.local(0x36, REGISTERS + k); // istore
+            }
+        }
+    }
+
+    // Constant pool entries, deduplicated by their text
+    private static final class ConstantPool {
+        final Bytecode bytes = new Bytecode();
+        final Map<String, Integer> entries = new HashMap<>();
+        int count = 1;
+
+        int utf8(String text) {
+            Integer index = entries.get("U" + text);
+            if (index != null) return index;
+            bytes.u1(1);
+            byte[] utf = text.getBytes(StandardCharsets.UTF_8);
+            bytes.u2(utf.length);
+            bytes.bytes(utf, utf.length);
+            return add("U" + text);
+        }
+
+        int classRef(String name) {
+            Integer index = entries.get("C" + name);
+            if (index != null) return index;
+            int nameIndex = utf8(name);
+            bytes.u1(7);
+            bytes.u2(nameIndex);
+            return add("C" + name);
+        }
+
+        int methodRef(String owner, String name, String type) {
+            String key = "M" + owner + "." + name + type;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            bytes.u1(12);
+            bytes.u2(nameIndex);
+            bytes.u2(typeIndex);
+            int nameAndType = add("N" + name + type);
+            bytes.u1(10);
+            bytes.u2(ownerIndex);
+            bytes.u2(nameAndType);
+            return add(key);
+        }
+
+        int integer(int value) {
+            Integer index = entries.get("I" + value);
+            if (index != null) return index;
+            bytes.u1(3);
+            bytes.u4(value);
+            return add("I" + value);
+        }
+
+        private int add(String key) {
+            entries.put(key, count);
+            return count++;
+        }
+    }
+
+    // Growable big-endian byte buffer with the few instruction forms the blocks need
+    private static final class Bytecode {
+        byte[] bytes = new byte[256];
+        int length;
+
+        void u1(int value) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >>> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void bytes(byte[] source, int count) {
+            for (int i = 0; i < count; i++) u1(source[i]);
+        }
+
+        void local(int opcode, int index) {
+            u1(opcode);
+            u1(index);
+        }
+
+        void iinc(int index, int amount) {
+            u1(0x84);
+            u1(index);
+            u1(amount);
+        }
+
+        // Emits a branch with an unset offset and returns its position for bind
+        int jump(int opcode) {
+            int position = length;
+            u1(opcode);
+            u2(0);
+            return position;
+        }
+
+        // Points the branch at position to the current end of the code
+        void bind(int branch) {
+            bind(branch, length);
+        }
+
+        void bind(int branch, int target) {
+            int offset = target - branch;
+            bytes[branch + 1] = (byte) (offset >>> 8);
+            bytes[branch + 2] = (byte) offset;
+        }
+    }
+
+}
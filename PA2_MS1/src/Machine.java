@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+// Runs an assembled program. Every text word is decoded once with Instruction.decode into
+// four ints {handler, a, b, c}, with immediates already extended and branch targets turned
+// into word indexes. run() then dispatches on the handler in one loop over the register array
+// and the paged Memory, so executing an instruction allocates nothing but new pages
+final class Machine {
+    static final int TEXT_ADDRESS = 0x00400000;
+    static final int DATA_ADDRESS = 0x10010000;
+    static final int GLOBAL_POINTER = 0x10008000; // Initial $gp and $sp, as in MARS
+    static final int STACK_POINTER = 0x7fffeffc;
+
+    // Loads see the text and everything up to the kernel space at 0x80000000, stores only the
+    // user data space from WRITABLE_ADDRESS, as in MARS. Both are one signed compare
+    static final int WRITABLE_ADDRESS = 0x10000000;
+    static final int HEAP_ADDRESS = 0x10040000; // First block sbrk hands out, as in MARS
+
+    // Handlers. R-type: a = rd, b = rs, c = rt. I-type: a = rt, b = rs, c = extended immediate.
+    // Branches: a = rs, b = rt, c = target index. Jumps: c = target index
+    static final int ADD = 0;
+    static final int SUB = 1;
+    static final int AND = 2;
+    static final int OR = 3;
+    static final int SLT = 4;
+    static final int ADDIU = 5;
+    static final int ANDI = 6;
+    static final int ORI = 7;
+    static final int LUI = 8;
+    static final int LW = 9;
+    static final int SW = 10;
+    static final int BEQ = 11;
+    static final int BNE = 12;
+    static final int J = 13;
+    static final int SYSCALL = 14;
+    static final int NOP = 15;     // Writes to $zero that cannot trap
+    static final int INVALID = 16; // Word that does not decode, c = the word
+    static final int HALT = 17;    // Just past the last instruction
+    static final int ESCAPE = 18;  // Target of a jump out of the text segment, a = source, c = address
+    static final int ENTER = 19;   // Leader of a block when the Jit is on, the word's handler is in entries
+    static final int BEQ_COUNTED = 20; // beq, bne and j that also count their taken jumps, when profiling
+    static final int BNE_COUNTED = 21;
+    static final int J_COUNTED = 22;
+    static final int ADD_ZERO = 23; // add and sub to $zero, which write nothing but still trap on overflow
+    static final int SUB_ZERO = 24;
+
+    private static final int JIT_THRESHOLD = 1000; // Entries into a block before it is compiled
+
+    private final int textWords;
+    private int[] code;
+    private final int[] registers = new int[34]; // 32 and 33 are written by compiled blocks that fault
+    private final Memory memory;
+
+    private final Console console;
+    private int heapEnd = HEAP_ADDRESS; // Program break, moved up by sbrk
+
+    private Jit jit;
+    private Jit.Block[] blocks;
+    private int[] blockLengths;
+    private int[] heat;
+    private int[] leaderHandlers;
+
+    // Profile counters, null unless profiling: jumps taken from each word, and runs that stopped
+    // before each word less those that started there
+    private long[] taken;
+    private long[] stops;
+
+    private int pc; // Word index into the text segment
+    private long retired;
+    private int exitCode;
+
+    // memory already holds the data segment, the text is copied in so lw can read it
+    Machine(int[] text, int textWords, Memory memory, ReadableByteChannel in, WritableByteChannel out) {
+        this(new Program(text, textWords), memory, in, out);
+        memory.write(TEXT_ADDRESS, text, textWords);
+    }
+
+    // One instance of a decoded program. memory already holds its text and data segments
+    Machine(Program program, Memory memory, ReadableByteChannel in, WritableByteChannel out) {
+        this.textWords = program.textWords;
+        this.code = program.code; // Shared until enableJit or enableProfile rewrite it
+        this.memory = memory;
+        this.console = new Console(in, out);
+        registers[28] = GLOBAL_POINTER;
+        registers[29] = STACK_POINTER;
+    }
+
+    // A text segment decoded once, so any number of Machines can run it. Every text word is
+    // four ints {handler, a, b, c}, then HALT, then the ESCAPE entries. Never changed after
+    // construction, so the Machines of several threads can share it
+    static final class Program {
+        private final int textWords;
+        private int[] code;
+        private int entries; // Used entries of code, escapes are added after HALT
+
+        Program(int[] text, int textWords) {
+            this.textWords = textWords;
+            code = new int[4 * (textWords + 1)];
+            entries = textWords + 1;
+            Main.Instruction instr = new Main.Instruction();
+            for (int i = 0; i < textWords; i++) {
+                predecode(instr, text[i], i);
+            }
+            code[4 * textWords] = HALT;
+        }
+
+        private void predecode(Main.Instruction instr, int word, int index) {
+            int handler;
+            int a = 0;
+            int b = 0;
+            int c = 0;
+            if (!instr.decode(word)) {
+                handler = INVALID;
+                c = word;
+            } else if (instr.format == Main.FORMAT_SYSCALL) {
+                handler = SYSCALL;
+            } else if (instr.format == Main.FORMAT_R) {
+                switch (instr.funct) {
+                    case 0x20: handler = ADD; break;
+                    case 0x22: handler = SUB; break;
+                    case 0x24: handler = AND; break;
+                    case 0x25: handler = OR; break;
+                    default: handler = SLT; break;
+                }
+                a = instr.rd;
+                b = instr.rs;
+                c = instr.rt;
+                if (a == 0) handler = handler == ADD ? ADD_ZERO : handler == SUB ? SUB_ZERO : NOP;
+            } else if (instr.format == Main.FORMAT_J) {
+                handler = J;
+                c = target(((TEXT_ADDRESS + 4 * index + 4) & 0xF0000000) | (instr.index << 2), index);
+            } else {
+                a = instr.rt;
+                b = instr.rs;
+                c = (short) instr.immediate; // Sign extended
+                switch (instr.opcode) {
+                    case 0x09: handler = ADDIU; break;
+                    case 0x0c: handler = ANDI; c = instr.immediate; break;
+                    case 0x0d: handler = ORI; c = instr.immediate; break;
+                    case 0x0f: handler = LUI; c = instr.immediate << 16; break;
+                    case 0x23: handler = LW; break;
+                    case 0x2b: handler = SW; break;
+                    case 0x04: handler = BEQ; break;
+                    default: handler = BNE; break;
+                }
+                if (handler == BEQ || handler == BNE) {
+                    a = instr.rs;
+                    b = instr.rt;
+                    c = target(TEXT_ADDRESS + 4 * index + 4 + (c << 2), index);
+                } else if (a == 0 && handler != LW && handler != SW) {
+                    handler = NOP;
+                }
+            }
+            code[4 * index] = handler;
+            code[4 * index + 1] = a;
+            code[4 * index + 2] = b;
+            code[4 * index + 3] = c;
+        }
+
+        // Word index of a jump target. A target outside the text segment gets its own ESCAPE
+        // entry, so the fault names the jump that was taken
+        private int target(int address, int source) {
+            int offset = address - TEXT_ADDRESS;
+            if (offset >= 0 && offset <= 4 * textWords) return offset >> 2;
+            if (4 * entries == code.length) code = Arrays.copyOf(code, code.length * 2);
+            code[4 * entries] = ESCAPE;
+            code[4 * entries + 1] = source;
+            code[4 * entries + 3] = address;
+            return entries++;
+        }
+    }
+
+    // Compiles blocks that are entered JIT_THRESHOLD times to JVM classes from now on
+    void enableJit() {
+        code = code.clone(); // Leaders are marked in a copy, the Program is shared
+        jit = new Jit(Arrays.copyOf(code, code.length), textWords);
+        blocks = new Jit.Block[textWords];
+        blockLengths = new int[textWords];
+        heat = new int[textWords];
+        leaderHandlers = new int[textWords];
+        for (int i = 0; i < textWords; i++) {
+            if (jit.isLeader(i)) {
+                leaderHandlers[i] = code[4 * i];
+                code[4 * i] = ENTER;
+            }
+        }
+    }
+
+    // Counts the jumps taken by every beq, bne and j from now on, for a Profile. Only taken jumps
+    // pay for a counter, in handlers of their own, so profiling leaves the dispatch of every
+    // other instruction as it is; counts() works out the rest. Only the interpreter counts,
+    // so this is not combined with enableJit
+    void enableProfile() {
+        code = code.clone(); // The counted handlers go in a copy, the Program is shared
+        taken = new long[textWords];
+        stops = new long[textWords + 1];
+        for (int i = 0; i < textWords; i++) {
+            switch (code[4 * i]) {
+                case BEQ: code[4 * i] = BEQ_COUNTED; break;
+                case BNE: code[4 * i] = BNE_COUNTED; break;
+                case J: code[4 * i] = J_COUNTED; break;
+                default: break;
+            }
+        }
+    }
+
+    // Executions of every word, from the flow of the program: a word runs as often as the word
+    // before it went on to it, plus the jumps taken to it, plus the runs that started at it,
+    // less the runs that stopped before it. Words are visited in order, so the word before is
+    // always known. A j never goes on to the next word, so all its executions are taken jumps
+    long[] counts() {
+        long[] into = new long[textWords + 1];
+        for (int i = 0; i < textWords; i++) {
+            int target = code[4 * i + 3];
+            if (taken[i] > 0 && target <= textWords) into[target] += taken[i];
+        }
+        long[] counts = new long[textWords];
+        long previous = 0;
+        for (int i = 0; i < textWords; i++) {
+            counts[i] = previous + into[i] - stops[i];
+            previous = counts[i] - taken[i];
+        }
+        return counts;
+    }
+
+    long[] taken() {
+        return taken;
+    }
+
+    // A run stopped with pc next, or at the word that faulted, which did execute. A faulting j
+    // is one to outside the text, it took its jump already
+    private void stopped(int pc, boolean faulted) {
+        if (faulted && code[4 * pc] == J_COUNTED) return;
+        stops[faulted ? pc + 1 : pc]++;
+    }
+
+    int compiledBlocks() {
+        return jit == null ? 0 : jit.compiledBlocks();
+    }
+
+    // Executes until exit, the end of the text segment or limit instructions, and returns the
+    // number of instructions retired by this call. A later call continues where this one stopped
+    long run(long limit) throws IOException {
+        int[] code = this.code;
+        int[] r = registers;
+        long[] taken = this.taken;
+        long count = 0;
+        int pc = this.pc;
+        boolean faulted = false;
+        if (taken != null) stops[pc]--; // Starts here, undoing the stop of the last run
+        try {
+            while (count < limit) {
+                int base = pc << 2;
+                int handler = code[base];
+                if (handler == ENTER) {
+                    Jit.Block block = blocks[pc];
+                    if (block != null && limit - count >= blockLengths[pc]) {
+                        long result;
+                        try {
+                            result = block.run(r, this, (int) Math.min(limit - count, Integer.MAX_VALUE));
+                        } catch (RuntimeException e) {
+                            pc = r[32];
+                            count += r[33];
+                            throw e;
+                        }
+                        pc = (int) result;
+                        count += result >>> 32;
+                        continue;
+                    }
+                    if (++heat[pc] == JIT_THRESHOLD) {
+                        int length = jit.blockLength(pc);
+                        if (length > 0) {
+                            blocks[pc] = jit.compile(pc, length);
+                            blockLengths[pc] = length;
+                        } else {
+                            code[base] = leaderHandlers[pc]; // Stays interpreted without the detour
+                        }
+                    }
+                    handler = leaderHandlers[pc];
+                }
+                switch (handler) {
+                    case ADD:
+                        r[code[base + 1]] = Math.addExact(r[code[base + 2]], r[code[base + 3]]);
+                        break;
+                    case SUB:
+                        r[code[base + 1]] = Math.subtractExact(r[code[base + 2]], r[code[base + 3]]);
+                        break;
+                    case ADD_ZERO:
+                        Math.addExact(r[code[base + 2]], r[code[base + 3]]);
+                        break;
+                    case SUB_ZERO:
+                        Math.subtractExact(r[code[base + 2]], r[code[base + 3]]);
+                        break;
+                    case AND:
+                        r[code[base + 1]] = r[code[base + 2]] & r[code[base + 3]];
+                        break;
+                    case OR:
+                        r[code[base + 1]] = r[code[base + 2]] | r[code[base + 3]];
+                        break;
+                    case SLT:
+                        r[code[base + 1]] = r[code[base + 2]] < r[code[base + 3]] ? 1 : 0;
+                        break;
+                    case ADDIU:
+                        r[code[base + 1]] = r[code[base + 2]] + code[base + 3];
+                        break;
+                    case ANDI:
+                        r[code[base + 1]] = r[code[base + 2]] & code[base + 3];
+                        break;
+                    case ORI:
+                        r[code[base + 1]] = r[code[base + 2]] | code[base + 3];
+                        break;
+                    case LUI:
+                        r[code[base + 1]] = code[base + 3];
+                        break;
+                    case LW:
+                        r[code[base + 1]] = load(r[code[base + 2]] + code[base + 3]);
+                        r[0] = 0;
+                        break;
+                    case SW:
+                        store(r[code[base + 2]] + code[base + 3], r[code[base + 1]]);
+                        break;
+                    case BEQ:
+                        if (r[code[base + 1]] == r[code[base + 2]]) {
+                            pc = code[base + 3];
+                            count++;
+                            continue;
+                        }
+                        break;
+                    case BNE:
+                        if (r[code[base + 1]] != r[code[base + 2]]) {
+                            pc = code[base + 3];
+                            count++;
+                            continue;
+                        }
+                        break;
+                    case J:
+                        pc = code[base + 3];
+                        count++;
+                        continue;
+                    case BEQ_COUNTED:
+                        if (r[code[base + 1]] == r[code[base + 2]]) {
+                            taken[pc]++;
+                            pc = code[base + 3];
+                            count++;
+                            continue;
+                        }
+                        break;
+                    case BNE_COUNTED:
+                        if (r[code[base + 1]] != r[code[base + 2]]) {
+                            taken[pc]++;
+                            pc = code[base + 3];
+                            count++;
+                            continue;
+                        }
+                        break;
+                    case J_COUNTED:
+                        taken[pc]++;
+                        pc = code[base + 3];
+                        count++;
+                        continue;
+                    case SYSCALL:
+                        if (!syscall()) {
+                            if (taken != null) stops[pc + 1]++; // Does not go on to the next word
+                            pc = textWords; // Any further run stops at HALT
+                            count++;
+                            return count;
+                        }
+                        break;
+                    case NOP:
+                        break;
+                    case INVALID:
+                        throw new IllegalStateException(String.format("Unsupported instruction 0x%08x",
+                                code[base + 3]));
+                    case HALT:
+                        return count; // Dropped off the bottom of the program
+                    default:
+                        pc = code[base + 1];
+                        throw new IllegalStateException(String.format("Jump to 0x%08x outside the text segment",
+                                code[base + 3]));
+                }
+                pc++;
+                count++;
+            }
+            return count;
+        } catch (ArithmeticException e) {
+            faulted = true;
+            throw fault(pc, "Arithmetic overflow");
+        } catch (IllegalStateException e) {
+            faulted = true;
+            throw fault(pc, e.getMessage());
+        } finally {
+            this.pc = pc;
+            if (taken != null) stopped(pc, faulted);
+            retired += count;
+            console.flush();
+        }
+    }
+
+    int load(int address) {
+        if ((address & 3) == 0 && address >= TEXT_ADDRESS) return memory.loadWord(address);
+        throw new IllegalStateException(String.format("Bad load address 0x%08x", address));
+    }
+
+    void store(int address, int value) {
+        if ((address & 3) == 0 && address >= WRITABLE_ADDRESS) {
+            memory.storeWord(address, value);
+            return;
+        }
+        throw new IllegalStateException(String.format("Bad store address 0x%08x", address));
+    }
+
+    // Services by $v0, as numbered in MARS. Returns false when the program exits
+    private boolean syscall() throws IOException {
+        int[] r = registers;
+        switch (r[2]) {
+            case 1: // print_int
+                console.printInt(r[4]);
+                return true;
+            case 4: // print_string
+                console.printString(memory, r[4]);
+                return true;
+            case 5: // read_int
+                r[2] = console.readInt();
+                return true;
+            case 8: // read_string, into $a1 bytes at $a0
+                console.readString(memory, r[4], r[5]);
+                return true;
+            case 9: // sbrk, $a0 more bytes rounded up to a word. Pages are only allocated when stored to
+                if (r[4] < 0) throw new IllegalStateException("Invalid sbrk amount " + r[4]);
+                if (r[4] > (r[29] & ~3) - heapEnd) {
+                    throw new IllegalStateException("sbrk of " + r[4] + " bytes does not fit below the stack");
+                }
+                r[2] = heapEnd;
+                heapEnd = (heapEnd + r[4] + 3) & ~3;
+                return true;
+            case 10: // exit
+                return false;
+            case 11: // print_char
+                console.printChar(r[4]);
+                return true;
+            case 17: // exit2
+                exitCode = r[4];
+                return false;
+            default:
+                throw new IllegalStateException("Unsupported syscall " + r[2]);
+        }
+    }
+
+    private static IllegalStateException fault(int pc, String message) {
+        return new IllegalStateException(String.format("%s at 0x%08x", message, TEXT_ADDRESS + 4 * pc));
+    }
+
+    int register(int number) {
+        return registers[number];
+    }
+
+    long retired() {
+        return retired;
+    }
+
+    int exitCode() {
+        return exitCode;
+    }
+}
@@ -1,9 +1,111 @@
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
 public class Main {
 
-    public static void main(String[] args) {
+    // Instruction formats, as stored in Instruction.format
+    static final int FORMAT_R = 0;
+    static final int FORMAT_I = 1;
+    static final int FORMAT_J = 2;
+    static final int FORMAT_SYSCALL = 3;
+
+    // Mnemonics indexed by opcode, and by funct for opcode 0. Null entries are not supported
+    static final String[] OPCODE_MNEMONICS = new String[64];
+    static final String[] FUNCT_MNEMONICS = new String[64];
+
+    // "mnemonic {opcode: " as ASCII, so rendering an instruction never builds a String
+    private static final byte[][] OPCODE_PREFIXES = new byte[64][];
+    private static final byte[][] FUNCT_PREFIXES = new byte[64][];
+    private static final byte[] OPCODE_FIELD = ascii(" {opcode: ");
+
+    static {
+        // R-type instructions (opcode 0) by funct
+        funct(0x20, "add");
+        funct(0x22, "sub");
+        funct(0x24, "and");
+        funct(0x25, "or");
+        funct(0x2a, "slt");
+        funct(0x0c, "syscall");
+
+        // J-type and I-type instructions by opcode
+        opcode(0x02, "j");
+        opcode(0x09, "addiu");
+        opcode(0x0c, "andi");
+        opcode(0x04, "beq");
+        opcode(0x05, "bne");
+        opcode(0x0f, "lui");
+        opcode(0x23, "lw");
+        opcode(0x0d, "ori");
+        opcode(0x2b, "sw");
+    }
+
+    private static void funct(int funct, String mnemonic) {
+        FUNCT_MNEMONICS[funct] = mnemonic;
+        FUNCT_PREFIXES[funct] = prefix(mnemonic);
+    }
+
+    private static void opcode(int opcode, String mnemonic) {
+        OPCODE_MNEMONICS[opcode] = mnemonic;
+        OPCODE_PREFIXES[opcode] = prefix(mnemonic);
+    }
+
+    // Joined by hand, a string concatenation here would bootstrap StringConcatFactory before
+    // the first word is decoded
+    private static byte[] prefix(String mnemonic) {
+        byte[] prefix = Arrays.copyOf(ascii(mnemonic), mnemonic.length() + OPCODE_FIELD.length);
+        System.arraycopy(OPCODE_FIELD, 0, prefix, mnemonic.length(), OPCODE_FIELD.length);
+        return prefix;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 1 && args[0].equals("--batch")) {
+            runBatch(args);
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("--run")) {
+            runProgram(args);
+            return;
+        }
+        if (args.length == 2 && args[0].equals("--serve")) {
+            Server.serve(args[1], Main::handle); // Keep running and disassemble requests from clients
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("--connect")) {
+            // Same output as the normal command line, disassembled by a running server.
+            // Without a word, every line of stdin is sent as a request
+            Iterable<String> requests = args.length > 2 ? List.of(args[2])
+                    : new BufferedReader(new InputStreamReader(System.in)).lines()::iterator;
+            System.exit(Server.request(args[1], requests, System.out, System.err));
+        }
+
         // Check that exactly one argument is provided
         if (args.length != 1) {
             System.err.println("Usage: java -jar PROG2_Milestone1.jar <8-digit hexadecimal MIPS instruction>");
+            System.err.println("       java -jar PROG2_Milestone1.jar --batch [--binary [--big-endian]] [file]");
+            System.err.println("       java -jar PROG2_Milestone1.jar --run [--binary [--big-endian]] [--jit] [--limit N]"
+                    + " [--profile file [--listing file]] program.text [program.data]");
+            System.err.println("       java -jar PROG2_Milestone1.jar --run [--binary [--big-endian]] [--limit N]"
+                    + " --instances dir [--threads N] [--results file] [--outputs dir] program.text [program.data]");
+            System.err.println("       java -jar PROG2_Milestone1.jar --serve <port | socket path>");
+            System.err.println("       java -jar PROG2_Milestone1.jar --connect <port | socket path> [word]");
             System.exit(1);
         }
 
@@ -12,188 +114,467 @@ public class Main {
         // Parse the hex string to a 32-bit value (using long to avoid sign issues)
         long instruction = Long.parseUnsignedLong(hexInstruction, 16);
 
-        // The opcode occupies the top 6 bits [31:26]
-        int opcode = (int) ((instruction >>> 26) & 0x3F);
+        Instruction instr = new Instruction();
+        if (!instr.decode((int) instruction)) {
+            System.err.println(instr.error());
+            return;
+        }
+
+        // Output the disassembled instruction with a newline.
+        System.out.println(instr.toString());
+    }
 
-        Instruction instr;
+    // Each server connection thread decodes into its own Instruction. A subclass rather than
+    // withInitial(Instruction::new), so loading Main does not bootstrap a lambda
+    private static final ThreadLocal<Instruction> SERVER_INSTRUCTION = new ThreadLocal<Instruction>() {
+        @Override
+        protected Instruction initialValue() {
+            return new Instruction();
+        }
+    };
 
-        // If opcode is 0, then it is an R-type instruction (or syscall)
-        if (opcode == 0) {
-            int rs    = (int) ((instruction >>> 21) & 0x1F);
-            int rt    = (int) ((instruction >>> 16) & 0x1F);
-            int rd    = (int) ((instruction >>> 11) & 0x1F);
-            int shmt  = (int) ((instruction >>> 6)  & 0x1F);
-            int funct = (int) (instruction & 0x3F);
+    // One server request, answered with exactly what main would print for the same argument
+    private static int handle(String request, Server.Reply reply) {
+        long instruction;
+        try {
+            instruction = Long.parseUnsignedLong(request.trim(), 16);
+        } catch (NumberFormatException e) {
+            reply.err("Invalid hexadecimal instruction: " + request.trim());
+            return 1;
+        }
+        Instruction instr = SERVER_INSTRUCTION.get();
+        if (instr.decode((int) instruction)) {
+            reply.out(instr.toString());
+        } else {
+            reply.err(instr.error());
+        }
+        return 0;
+    }
+
+    // Batch mode: disassembles a whole .text file (hex lines, or the raw binary segment with --binary)
+    // or stdin when no file is given, writing every result through one output buffer
+    private static void runBatch(String[] args) {
+        boolean binary = false;
+        ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+        String inputFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--big-endian")) {
+                order = ByteOrder.BIG_ENDIAN;
+            } else {
+                inputFile = args[i];
+            }
+        }
+
+        try (InputStream in = inputFile == null ? System.in : Files.newInputStream(Paths.get(inputFile));
+             BatchWriter out = new BatchWriter(new FileOutputStream(FileDescriptor.out))) {
+            if (binary) {
+                disassembleBinary(in, order, out);
+            } else {
+                disassembleHex(in, out);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error reading input: " + e.getMessage());
+            System.exit(1);
+        }
+    }
 
-            // Check for syscall: it is the only R-type where the funct field is 0x0c
-            if (funct == 0x0c) {
-                instr = new SyscallInstruction(opcode, funct);
+    // Run mode: executes the assembler's .text and .data output, by default the .data file
+    // next to the .text file, and reports the number of instructions retired on stderr
+    private static void runProgram(String[] args) throws IOException {
+        boolean binary = false;
+        boolean jit = false;
+        ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+        long limit = Long.MAX_VALUE;
+        String profileFile = null;
+        String listingFile = null;
+        String instances = null;
+        String resultsFile = null;
+        String outputs = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String textFile = null;
+        String dataFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--big-endian")) {
+                order = ByteOrder.BIG_ENDIAN;
+            } else if (args[i].equals("--jit")) {
+                jit = true; // Compile hot blocks to JVM bytecode
+            } else if (args[i].equals("--limit") && i + 1 < args.length) {
+                limit = Long.parseLong(args[++i]); // Stop after this many instructions
+            } else if (args[i].equals("--profile") && i + 1 < args.length) {
+                profileFile = args[++i]; // Hot blocks and instructions after the run, - for stderr
+            } else if (args[i].equals("--listing") && i + 1 < args.length) {
+                listingFile = args[++i]; // PROG2 --listing of the program, for labels and source lines
+            } else if (args[i].equals("--instances") && i + 1 < args.length) {
+                instances = args[++i]; // One run per file, the file is its standard input
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]); // Instances run at once
+            } else if (args[i].equals("--results") && i + 1 < args.length) {
+                resultsFile = args[++i]; // Status, count and output checksum of every instance
+            } else if (args[i].equals("--outputs") && i + 1 < args.length) {
+                outputs = args[++i]; // Directory for the output of every instance
+            } else if (textFile == null) {
+                textFile = args[i];
             } else {
-                String mnemonic;
-                // Determine the mnemonic based on the funct field
-                switch (funct) {
-                    case 0x20:
-                        mnemonic = "add";
-                        break;
-                    case 0x22:
-                        mnemonic = "sub";
-                        break;
-                    case 0x24:
-                        mnemonic = "and";
-                        break;
-                    case 0x25:
-                        mnemonic = "or";
-                        break;
-                    case 0x2a:
-                        mnemonic = "slt";
-                        break;
-                    default:
-                        System.err.println("Unknown R-type function code: " + Integer.toHexString(funct));
-                        return;
+                dataFile = args[i];
+            }
+        }
+        if (jit && profileFile != null) {
+            System.err.println("--profile counts in the interpreter and cannot be combined with --jit");
+            System.exit(1);
+        }
+        if (instances != null && (jit || profileFile != null || threads < 1)) {
+            System.err.println("--instances runs the interpreter on 1 or more threads, without --jit or --profile");
+            System.exit(1);
+        }
+        if (dataFile == null && textFile != null && textFile.endsWith(".text")) {
+            dataFile = textFile.substring(0, textFile.length() - ".text".length()) + ".data";
+        }
+
+        WordList text = new WordList();
+        Memory memory = new Memory();
+        List<String> listing = null;
+        try {
+            readWords(textFile, binary, order, text);
+            if (listingFile != null) {
+                listing = Files.readAllLines(Paths.get(listingFile));
+            }
+            if (dataFile != null && Files.exists(Paths.get(dataFile))) {
+                if (binary && order == ByteOrder.LITTLE_ENDIAN) {
+                    memory.map(Machine.DATA_ADDRESS, Paths.get(dataFile));
+                } else {
+                    WordList data = new WordList();
+                    readWords(dataFile, binary, order, data);
+                    memory.write(Machine.DATA_ADDRESS, data.words, data.count);
                 }
-                instr = new RTypeInstruction(mnemonic, opcode, rs, rt, rd, shmt, funct);
-            }
-        }
-        // Check for J-type: j instruction has opcode 0x02
-        else if (opcode == 0x02) {
-            // The J-type index is the lower 26 bits.
-            int index = (int) (instruction & 0x03FFFFFF);
-            instr = new JTypeInstruction("j", opcode, index);
-        }
-        // Otherwise, this is an I-type instruction
-        else {
-            int rs = (int) ((instruction >>> 21) & 0x1F);
-            int rt = (int) ((instruction >>> 16) & 0x1F);
-            int immediate = (int) (instruction & 0xFFFF);
-            String mnemonic;
-            switch (opcode) {
-                case 0x09:
-                    mnemonic = "addiu";
-                    break;
-                case 0x0c:
-                    mnemonic = "andi";
-                    break;
-                case 0x04:
-                    mnemonic = "beq";
-                    break;
-                case 0x05:
-                    mnemonic = "bne";
-                    break;
-                case 0x0f:
-                    mnemonic = "lui";
-                    // For lui, the rs(base) value is always "00"
-                    rs = 0;
-                    break;
-                case 0x23:
-                    mnemonic = "lw";
-                    break;
-                case 0x0d:
-                    mnemonic = "ori";
-                    break;
-                case 0x2b:
-                    mnemonic = "sw";
-                    break;
-                default:
-                    System.err.println("Unknown I-type opcode: " + Integer.toHexString(opcode));
-                    return;
             }
-            instr = new ITypeInstruction(mnemonic, opcode, rs, rt, immediate);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error reading input: " + e.getMessage());
+            System.exit(1);
         }
 
-        // Output the disassembled instruction with a newline.
-        System.out.println(instr.toString());
+        if (instances != null) {
+            memory.write(Machine.TEXT_ADDRESS, text.words, text.count);
+            int status = 0;
+            try {
+                Batch batch = new Batch(new Machine.Program(text.words, text.count), memory, limit,
+                        outputs == null ? null : Files.createDirectories(Paths.get(outputs)));
+                status = batch.run(Paths.get(instances), threads, resultsFile == null ? null : Paths.get(resultsFile));
+            } catch (IOException e) {
+                System.err.println("Error reading input: " + e.getMessage());
+                System.exit(1);
+            }
+            if (status != 0) {
+                System.exit(status);
+            }
+            return;
+        }
+
+        // The program's standard streams as channels, the Machine buffers them itself
+        Machine machine = new Machine(text.words, text.count, memory,
+                new FileInputStream(FileDescriptor.in).getChannel(),
+                new FileOutputStream(FileDescriptor.out).getChannel());
+        if (jit) {
+            machine.enableJit();
+        }
+        if (profileFile != null) {
+            machine.enableProfile();
+        }
+        long start = System.nanoTime();
+        int status;
+        try {
+            machine.run(limit);
+            status = machine.exitCode();
+        } catch (IllegalStateException e) {
+            System.err.println("Runtime error: " + e.getMessage());
+            status = 1;
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        // Built by hand, the first printf of a run costs more than a short program takes to run
+        StringBuilder report = new StringBuilder("Instructions retired: ").append(machine.retired()).append(" (");
+        appendTenths(report, nanos / 1e6).append(" ms, ");
+        appendTenths(report, machine.retired() * 1e3 / nanos).append(" MIPS, ");
+        report.append(memory.pages() * (Memory.PAGE_SIZE / 1024)).append(" KB memory");
+        if (jit) {
+            report.append(", ").append(machine.compiledBlocks()).append(" blocks compiled");
+        }
+        System.err.println(report.append(')'));
+        if (profileFile != null) {
+            writeProfile(machine, text, profileFile, listing);
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
     }
 
-    // Abstract base class for an instruction
-    abstract static class Instruction {
-        String mnemonic;
-        Instruction(String mnemonic) {
-            this.mnemonic = mnemonic;
+    // value with one decimal, as %.1f prints it
+    private static StringBuilder appendTenths(StringBuilder out, double value) {
+        long tenths = Math.round(value * 10);
+        return out.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    private static void writeProfile(Machine machine, WordList text, String profileFile, List<String> listing)
+            throws IOException {
+        Profile profile = new Profile(text.words, text.count, machine.counts(), machine.taken());
+        if (listing != null) {
+            profile.readListing(listing);
+        }
+        if (profileFile.equals("-")) {
+            profile.write(System.err);
+            return;
+        }
+        try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(profileFile)), false,
+                StandardCharsets.UTF_8)) {
+            profile.write(out);
         }
-        public abstract String toString();
     }
 
-    // R-type instruction (for add, sub, and, or, slt)
-    // Output format:
-    // mnemonic {opcode: XX, rs: XX, rt: XX, rd: XX, shmt: XX, funct: XX}
-    static class RTypeInstruction extends Instruction {
-        int opcode;
-        int rs;
-        int rt;
-        int rd;
-        int shmt;
-        int funct;
-        RTypeInstruction(String mnemonic, int opcode, int rs, int rt, int rd, int shmt, int funct) {
-            super(mnemonic);
-            this.opcode = opcode;
-            this.rs = rs;
-            this.rt = rt;
-            this.rd = rd;
-            this.shmt = shmt;
-            this.funct = funct;
+    private static void readWords(String file, boolean binary, ByteOrder order, WordSink sink) throws IOException {
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            if (binary) {
+                disassembleBinary(in, order, sink);
+            } else {
+                disassembleHex(in, sink);
+            }
         }
-        @Override
-        public String toString() {
-            return String.format("%s {opcode: %02x, rs: %02x, rt: %02x, rd: %02x, shmt: %02x, funct: %02x}",
-                    mnemonic, opcode, rs, rt, rd, shmt, funct);
+    }
+
+    // One 8-digit hex word per line, blank lines are skipped
+    private static void disassembleHex(InputStream in, WordSink out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int word = 0;
+        int digits = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+                int c = buffer[i];
+                if (c == '\n' || c == '\r') {
+                    if (digits > 0) {
+                        out.write(word);
+                    }
+                    word = 0;
+                    digits = 0;
+                } else {
+                    int value = Character.digit(c, 16);
+                    if (value < 0 || ++digits > 8) {
+                        throw new IllegalArgumentException("Invalid hex word in input");
+                    }
+                    word = (word << 4) | value;
+                }
+            }
+        }
+        if (digits > 0) {
+            out.write(word);
         }
     }
 
-    // I-type instruction (for addiu, andi, beq, bne, lui, lw, ori, sw)
-    // Output format:
-    // mnemonic {opcode: XX, rs(base): XX, rt: XX, immediate(offset): XXXX}
-    static class ITypeInstruction extends Instruction {
-        int opcode;
-        int rs;
-        int rt;
-        int immediate;
-        ITypeInstruction(String mnemonic, int opcode, int rs, int rt, int immediate) {
-            super(mnemonic);
-            this.opcode = opcode;
-            this.rs = rs;
-            this.rt = rt;
-            this.immediate = immediate;
+    // Raw 4-byte words, as written by the assembler's binary output format
+    private static void disassembleBinary(InputStream in, ByteOrder order, WordSink out) throws IOException {
+        byte[] bytes = new byte[1 << 16];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(order);
+        int filled = 0;
+        int read;
+        while ((read = in.read(bytes, filled, bytes.length - filled)) > 0) {
+            filled += read;
+            int whole = filled & ~3;
+            for (int i = 0; i < whole; i += 4) {
+                out.write(buffer.getInt(i));
+            }
+            // Keep a partial word for the next read
+            System.arraycopy(bytes, whole, bytes, 0, filled - whole);
+            filled -= whole;
         }
+        if (filled != 0) {
+            throw new IllegalArgumentException("Binary input is not a whole number of words");
+        }
+    }
+
+    // Receives the words read from a hex or binary segment, in order
+    interface WordSink {
+        void write(int word) throws IOException;
+    }
+
+    // Collects the words of a segment to load into the Machine
+    static final class WordList implements WordSink {
+        int[] words = new int[1024];
+        int count;
+
         @Override
-        public String toString() {
-            return String.format("%s {opcode: %02x, rs(base): %02x, rt: %02x, immediate(offset): %04x}",
-                    mnemonic, opcode, rs, rt, immediate);
+        public void write(int word) {
+            if (count == words.length) words = Arrays.copyOf(words, count * 2);
+            words[count++] = word;
         }
     }
 
-    // J-type instruction (for j)
-    // Output format:
-    // mnemonic {opcode: XX, index: XXXXXXX}
-    static class JTypeInstruction extends Instruction {
-        int opcode;
-        int index;
-        JTypeInstruction(String mnemonic, int opcode, int index) {
-            super(mnemonic);
-            this.opcode = opcode;
-            this.index = index;
+    // Decodes words into one reused Instruction and renders them straight into a byte buffer
+    static final class BatchWriter implements WordSink, AutoCloseable {
+        private final OutputStream out;
+        private final Instruction instr = new Instruction();
+        private final byte[] buffer = new byte[1 << 16];
+        private int position;
+
+        BatchWriter(OutputStream out) {
+            this.out = out;
         }
+
         @Override
-        public String toString() {
-            return String.format("%s {opcode: %02x, index: %07x}",
-                    mnemonic, opcode, index);
+        public void write(int word) throws IOException {
+            if (!instr.decode(word)) {
+                System.err.println(instr.error());
+                return;
+            }
+            position = instr.appendTo(buffer, position);
+            buffer[position++] = '\n';
+            if (position > buffer.length - Instruction.MAX_LENGTH - 1) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            out.flush();
         }
     }
 
-    // Special case for syscall instruction
-    // Output format:
-    // syscall {opcode: XX, code: 000000, funct: XX}
-    static class SyscallInstruction extends Instruction {
+    // A decoded instruction. One instance is reused for every word decoded on a thread,
+    // so decoding only stores fields and looks the mnemonic up in the opcode/funct tables.
+    // Output formats:
+    // R-type:  mnemonic {opcode: XX, rs: XX, rt: XX, rd: XX, shmt: XX, funct: XX}
+    // I-type:  mnemonic {opcode: XX, rs(base): XX, rt: XX, immediate(offset): XXXX}
+    // J-type:  mnemonic {opcode: XX, index: XXXXXXX}
+    // syscall: syscall {opcode: XX, code: 000000, funct: XX}
+    static final class Instruction {
+        static final int MAX_LENGTH = 80;
+
+        private static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
+        private static final byte[] RS = ascii(", rs: ");
+        private static final byte[] RS_BASE = ascii(", rs(base): ");
+        private static final byte[] RT = ascii(", rt: ");
+        private static final byte[] RD = ascii(", rd: ");
+        private static final byte[] SHMT = ascii(", shmt: ");
+        private static final byte[] FUNCT = ascii(", funct: ");
+        private static final byte[] IMMEDIATE = ascii(", immediate(offset): ");
+        private static final byte[] INDEX = ascii(", index: ");
+        private static final byte[] CODE = ascii(", code: 000000");
+
+        int format;
+        String mnemonic;
         int opcode;
+        int rs;
+        int rt;
+        int rd;
+        int shmt;
         int funct;
-        SyscallInstruction(int opcode, int funct) {
-            super("syscall");
-            this.opcode = opcode;
-            this.funct = funct;
+        int immediate;
+        int index;
+        private byte[] prefix;
+
+        // Fills in the fields for a word, or returns false when it is not supported
+        boolean decode(int instruction) {
+            // The opcode occupies the top 6 bits [31:26]
+            opcode = instruction >>> 26;
+            rs = (instruction >>> 21) & 0x1F;
+            rt = (instruction >>> 16) & 0x1F;
+
+            // If opcode is 0, then it is an R-type instruction (or syscall)
+            if (opcode == 0) {
+                rd = (instruction >>> 11) & 0x1F;
+                shmt = (instruction >>> 6) & 0x1F;
+                funct = instruction & 0x3F;
+                if (FUNCT_MNEMONICS[funct] == null) {
+                    return false;
+                }
+                // syscall is the only R-type where the funct field is 0x0c
+                format = funct == 0x0c ? FORMAT_SYSCALL : FORMAT_R;
+                mnemonic = FUNCT_MNEMONICS[funct];
+                prefix = FUNCT_PREFIXES[funct];
+                return true;
+            }
+
+            if (OPCODE_MNEMONICS[opcode] == null) {
+                return false;
+            }
+            mnemonic = OPCODE_MNEMONICS[opcode];
+            prefix = OPCODE_PREFIXES[opcode];
+
+            // j is the only J-type instruction, its index is the lower 26 bits
+            if (opcode == 0x02) {
+                format = FORMAT_J;
+                index = instruction & 0x03FFFFFF;
+            } else {
+                format = FORMAT_I;
+                immediate = instruction & 0xFFFF;
+                if (opcode == 0x0f) {
+                    // For lui, the rs(base) value is always "00"
+                    rs = 0;
+                }
+            }
+            return true;
+        }
+
+        // Message for a word decode rejected
+        String error() {
+            if (opcode == 0) {
+                return "Unknown R-type function code: " + Integer.toHexString(funct);
+            }
+            return "Unknown I-type opcode: " + Integer.toHexString(opcode);
         }
+
+        // Renders the last decoded instruction into out at position, returning the new position
+        int appendTo(byte[] out, int position) {
+            position = put(prefix, out, position);
+            position = putHex(opcode, 2, out, position);
+            switch (format) {
+                case FORMAT_R:
+                    position = putHex(rs, 2, out, put(RS, out, position));
+                    position = putHex(rt, 2, out, put(RT, out, position));
+                    position = putHex(rd, 2, out, put(RD, out, position));
+                    position = putHex(shmt, 2, out, put(SHMT, out, position));
+                    position = putHex(funct, 2, out, put(FUNCT, out, position));
+                    break;
+                case FORMAT_I:
+                    position = putHex(rs, 2, out, put(RS_BASE, out, position));
+                    position = putHex(rt, 2, out, put(RT, out, position));
+                    position = putHex(immediate, 4, out, put(IMMEDIATE, out, position));
+                    break;
+                case FORMAT_J:
+                    position = putHex(index, 7, out, put(INDEX, out, position));
+                    break;
+                default:
+                    position = put(CODE, out, position);
+                    position = putHex(funct, 2, out, put(FUNCT, out, position));
+                    break;
+            }
+            out[position++] = '}';
+            return position;
+        }
+
+        private static int put(byte[] text, byte[] out, int position) {
+            System.arraycopy(text, 0, out, position, text.length);
+            return position + text.length;
+        }
+
+        private static int putHex(int value, int digits, byte[] out, int position) {
+            for (int i = position + digits - 1; i >= position; i--) {
+                out[i] = HEX_DIGITS[value & 0xF];
+                value >>>= 4;
+            }
+            return position + digits;
+        }
+
         @Override
         public String toString() {
-            return String.format("%s {opcode: %02x, code: 000000, funct: %02x}",
-                    mnemonic, opcode, funct);
+            byte[] text = new byte[MAX_LENGTH];
+            return new String(text, 0, appendTo(text, 0), StandardCharsets.US_ASCII);
         }
     }
 }
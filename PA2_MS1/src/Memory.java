@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Sparse memory of a Machine. The 32-bit address space is split into 4 KB pages held in a
+// two-level table, and a page is only allocated, off-heap, on the first store into it, so
+// memory use follows what the program touches. Words are little-endian, the way the assembler
+// packs .asciiz bytes, so byte n of a word is at its address + n. The last pages loaded from
+// and stored to are cached, so runs of lw and sw within a page skip the table walk. Alignment
+// and which addresses a program may use are checked by the Machine
+final class Memory {
+    static final int PAGE_BITS = 12;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int TABLE_BITS = 10; // Pages per second-level table, 4 MB of addresses
+    private static final int OFFSET_MASK = PAGE_SIZE - 1;
+
+    private final ByteBuffer[][] directory = new ByteBuffer[1 << (32 - PAGE_BITS - TABLE_BITS)][];
+    private int loadPage = -1; // Page number of loadCache, -1 when nothing is cached
+    private ByteBuffer loadCache;
+    private int storePage = -1; // Same for stores, only ever a writable page
+    private ByteBuffer storeCache;
+    private int pages;
+
+    int loadWord(int address) {
+        int page = address >>> PAGE_BITS;
+        if (page != loadPage) {
+            ByteBuffer buffer = find(page);
+            if (buffer == null) return 0; // Never written, reads as zero without allocating
+            loadPage = page;
+            loadCache = buffer;
+        }
+        return loadCache.getInt(address & OFFSET_MASK);
+    }
+
+    void storeWord(int address, int value) {
+        int page = address >>> PAGE_BITS;
+        if (page != storePage) {
+            storeCache = writablePage(page);
+            storePage = page;
+        }
+        storeCache.putInt(address & OFFSET_MASK, value);
+    }
+
+    // Copies the bytes of a NUL-terminated string at address into dest, at most length of them
+    // and never past the end of the page. Returns ~n when the terminator was found after n
+    // bytes, or the number of bytes copied when the string goes on
+    int loadString(int address, byte[] dest, int offset, int length) {
+        ByteBuffer buffer = find(address >>> PAGE_BITS);
+        if (buffer == null) return ~0; // Never written, the string ends right here
+        int start = address & OFFSET_MASK;
+        int count = Math.min(length, PAGE_SIZE - start);
+        for (int i = 0; i < count; i++) {
+            byte b = buffer.get(start + i);
+            if (b == 0) return ~i;
+            dest[offset + i] = b;
+        }
+        return count;
+    }
+
+    // Copies length bytes of src to consecutive addresses starting at address, a page at a time
+    void storeBytes(int address, byte[] src, int offset, int length) {
+        while (length > 0) {
+            int start = address & OFFSET_MASK;
+            int count = Math.min(length, PAGE_SIZE - start);
+            writablePage(address >>> PAGE_BITS).put(start, src, offset, count);
+            address += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Copies count words to consecutive word addresses starting at address
+    void write(int address, int[] words, int count) {
+        for (int i = 0; i < count; i++) {
+            storeWord(address + 4 * i, words[i]);
+        }
+    }
+
+    // Loads a little-endian binary segment. Whole pages of a page-aligned segment are mapped
+    // read-only straight from the file, so the OS only reads what the program touches, and
+    // are copied to an allocated page on the first store into them
+    void map(int address, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if ((size & 3) != 0) {
+                throw new IllegalArgumentException("Binary input is not a whole number of words");
+            }
+            if (size == 0) return;
+            if (size > 0x80000000L - Integer.toUnsignedLong(address)) {
+                throw new IllegalArgumentException("Segment does not fit at " + String.format("0x%08x", address));
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            int length = (int) size;
+            int offset = 0;
+            if ((address & OFFSET_MASK) == 0) {
+                for (; offset + PAGE_SIZE <= length; offset += PAGE_SIZE) {
+                    install((address + offset) >>> PAGE_BITS,
+                            mapped.slice(offset, PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+                }
+            }
+            for (; offset < length; offset += 4) {
+                storeWord(address + offset, mapped.getInt(offset));
+            }
+        }
+    }
+
+    // Makes every page read-only, so forks can share them. This memory then copies a page on
+    // the first store into it like any fork, and the shared pages never change
+    void freeze() {
+        for (ByteBuffer[] table : directory) {
+            if (table == null) continue;
+            for (int i = 0; i < table.length; i++) {
+                if (table[i] != null && !table[i].isReadOnly()) {
+                    table[i] = table[i].asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+        }
+        loadPage = -1;
+        storePage = -1;
+    }
+
+    // A memory that starts as a copy of this frozen one, sharing its pages until it stores into
+    // them. Only reads this one, so any number of threads can fork it at once
+    Memory fork() {
+        Memory fork = new Memory();
+        for (int t = 0; t < directory.length; t++) {
+            if (directory[t] != null) fork.directory[t] = directory[t].clone();
+        }
+        fork.pages = pages;
+        return fork;
+    }
+
+    // Pages allocated or mapped so far
+    int pages() {
+        return pages;
+    }
+
+    private ByteBuffer find(int page) {
+        ByteBuffer[] table = directory[page >>> TABLE_BITS];
+        return table == null ? null : table[page & ((1 << TABLE_BITS) - 1)];
+    }
+
+    private ByteBuffer writablePage(int page) {
+        ByteBuffer buffer = find(page);
+        if (buffer == null || buffer.isReadOnly()) {
+            ByteBuffer copy = ByteBuffer.allocateDirect(PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer != null) copy.put(0, buffer, 0, PAGE_SIZE);
+            install(page, copy);
+            buffer = copy;
+        }
+        return buffer;
+    }
+
+    private void install(int page, ByteBuffer buffer) {
+        ByteBuffer[] table = directory[page >>> TABLE_BITS];
+        if (table == null) {
+            table = new ByteBuffer[1 << TABLE_BITS];
+            directory[page >>> TABLE_BITS] = table;
+        }
+        if (table[page & ((1 << TABLE_BITS) - 1)] == null) pages++;
+        table[page & ((1 << TABLE_BITS) - 1)] = buffer;
+        if (page == loadPage) loadCache = buffer;
+        if (page == storePage) storePage = -1;
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+// Report of a run with --profile, made from the counters a Machine keeps after enableProfile:
+// executions of every word and taken beq and bne. Blocks start at the same leaders as the
+// Jit's, the entry point, branch and jump targets and the word after a beq, bne, j or
+// syscall, so a block's entries are the count of its first word. Addresses are named after
+// the nearest label at or before them, with their source line, when the listing PROG2
+// writes with --listing is read first; instructions are shown as the decoder renders them
+final class Profile {
+    private static final int TOP = 20; // Rows of each table
+
+    private final int[] text;
+    private final int textWords;
+    private final long[] counts;
+    private final long[] taken;
+    private final TreeMap<Integer, String> labels = new TreeMap<>(); // By word index
+    private final String[] sources;
+
+    Profile(int[] text, int textWords, long[] counts, long[] taken) {
+        this.text = text;
+        this.textWords = textWords;
+        this.counts = counts;
+        this.taken = taken;
+        sources = new String[textWords];
+    }
+
+    // Takes the labels and source lines from a listing. A line with a word holds the source
+    // of the line that produced it, from its first word on; a line without one holds a label
+    // that stands alone, or a line --optimize removed, at the address of the next word. Lines
+    // are split into their fields rather than cut at columns, so the listing's widths are
+    // PROG2's alone: the address, then on a line with a word the word and the binary fields
+    // that spell it out again, then the source. The lines are read before the run, so a wrong
+    // path is reported before the program runs rather than after
+    void readListing(List<String> listing) {
+        for (String line : listing) {
+            if (tokenEnd(line, 0) != 8) continue;
+            int index;
+            try {
+                index = (Integer.parseUnsignedInt(line.substring(0, 8), 16) - Machine.TEXT_ADDRESS) >> 2;
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (index < 0 || index > textWords) continue;
+            int fieldsEnd = fieldsEnd(line, 8);
+            String source = line.substring(fieldsEnd < 0 ? 8 : fieldsEnd).trim();
+            if (source.isEmpty()) continue;
+            int colon = source.indexOf(':');
+            if (colon > 0 && source.substring(0, colon).trim().indexOf(' ') < 0) {
+                labels.putIfAbsent(index, source.substring(0, colon).trim());
+            }
+            if (index < textWords && fieldsEnd >= 0 && sources[index] == null) {
+                sources[index] = source;
+            }
+        }
+    }
+
+    // End of the word and its binary fields that follow the address ending at start, or -1
+    // when the line has no word there
+    private static int fieldsEnd(String line, int start) {
+        int wordStart = blanksEnd(line, start);
+        int position = tokenEnd(line, wordStart);
+        if (position - wordStart != 8) return -1;
+        int word;
+        try {
+            word = Integer.parseUnsignedInt(line.substring(wordStart, position), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        long bits = 0;
+        int count = 0;
+        while (count < 32) {
+            int fieldStart = blanksEnd(line, position);
+            int fieldEnd = tokenEnd(line, fieldStart);
+            if (fieldEnd == fieldStart || count + fieldEnd - fieldStart > 32) return -1;
+            for (int i = fieldStart; i < fieldEnd; i++) {
+                char c = line.charAt(i);
+                if (c != '0' && c != '1') return -1;
+                bits = bits << 1 | (c - '0');
+            }
+            count += fieldEnd - fieldStart;
+            position = fieldEnd;
+        }
+        return (int) bits == word ? position : -1;
+    }
+
+    private static int blanksEnd(String line, int position) {
+        while (position < line.length() && line.charAt(position) == ' ') position++;
+        return position;
+    }
+
+    private static int tokenEnd(String line, int position) {
+        while (position < line.length() && line.charAt(position) != ' ') position++;
+        return position;
+    }
+
+    void write(PrintStream out) {
+        Main.Instruction instr = new Main.Instruction();
+        boolean[] leaders = new boolean[textWords + 1];
+        leaders[0] = true;
+        long total = 0;
+        long loads = 0;
+        long stores = 0;
+        long branches = 0;
+        long takenBranches = 0;
+        int touched = 0;
+        for (int i = 0; i < textWords; i++) {
+            total += counts[i];
+            if (counts[i] > 0) touched++;
+            if (!instr.decode(text[i])) continue;
+            int target = -1;
+            if (instr.opcode == 0x04 || instr.opcode == 0x05) {
+                branches += counts[i];
+                takenBranches += taken[i];
+                target = i + 1 + (short) instr.immediate;
+            } else if (instr.format == Main.FORMAT_J) {
+                target = ((((Machine.TEXT_ADDRESS + 4 * i + 4) & 0xF0000000) | (instr.index << 2))
+                        - Machine.TEXT_ADDRESS) >> 2;
+            } else if (instr.opcode == 0x23) {
+                loads += counts[i];
+            } else if (instr.opcode == 0x2b) {
+                stores += counts[i];
+            }
+            if (target >= 0 || instr.format == Main.FORMAT_SYSCALL) leaders[i + 1] = true;
+            if (target >= 0 && target <= textWords) leaders[target] = true;
+        }
+        out.printf("Profile: %d instructions executed at %d of %d words%n", total, touched, textWords);
+        out.printf("Loads %d, stores %d, branches %d (%d taken, %d not taken)%n", loads, stores, branches,
+                takenBranches, branches - takenBranches);
+
+        // Blocks as {start, words, instructions, loads, stores}
+        List<long[]> blocks = new ArrayList<>();
+        for (int start = 0; start < textWords; ) {
+            int end = start + 1;
+            while (end < textWords && !leaders[end]) end++;
+            long[] block = {start, end - start, 0, 0, 0};
+            for (int i = start; i < end; i++) {
+                block[2] += counts[i];
+                int opcode = text[i] >>> 26;
+                if (opcode == 0x23) block[3] += counts[i];
+                if (opcode == 0x2b) block[4] += counts[i];
+            }
+            if (block[2] > 0) blocks.add(block);
+            start = end;
+        }
+        blocks.sort((a, b) -> Long.compare(b[2], a[2]));
+        out.printf("%nHot blocks%n  %-10s  %-24s %5s %12s %14s %6s %12s %12s%n", "address", "label", "words",
+                "entries", "instructions", "%", "loads", "stores");
+        for (long[] block : blocks.subList(0, Math.min(TOP, blocks.size()))) {
+            int start = (int) block[0];
+            out.printf("  0x%08x  %-24s %5d %12d %14d %5.1f%% %12d %12d%n", address(start), label(start), block[1],
+                    counts[start], block[2], percent(block[2], total), block[3], block[4]);
+        }
+
+        // The TOP hottest words, kept in a heap with the coldest of them on top
+        PriorityQueue<Integer> hottest = new PriorityQueue<>(TOP + 1, (a, b) -> Long.compare(counts[a], counts[b]));
+        for (int i = 0; i < textWords; i++) {
+            if (counts[i] == 0 || hottest.size() == TOP && counts[i] <= counts[hottest.peek()]) continue;
+            hottest.add(i);
+            if (hottest.size() > TOP) hottest.poll();
+        }
+        List<Integer> rows = new ArrayList<>(hottest);
+        rows.sort((a, b) -> counts[a] != counts[b] ? Long.compare(counts[b], counts[a]) : Integer.compare(a, b));
+        out.printf("%nHot instructions%n  %-10s  %-24s %12s %6s %12s %12s  %-64s  %s%n", "address", "label", "count",
+                "%", "taken", "not taken", "instruction", "source");
+        for (int i : rows) {
+            String branch = "";
+            String instruction = instr.decode(text[i]) ? instr.toString() : String.format("0x%08x", text[i]);
+            if (instr.opcode == 0x04 || instr.opcode == 0x05) {
+                branch = String.format("%12d %12d", taken[i], counts[i] - taken[i]);
+            }
+            out.printf("  0x%08x  %-24s %12d %5.1f%% %-25s  %-64s  %s%n", address(i), label(i), counts[i],
+                    percent(counts[i], total), branch, instruction, sources[i] == null ? "" : sources[i]);
+        }
+    }
+
+    private static int address(int index) {
+        return Machine.TEXT_ADDRESS + 4 * index;
+    }
+
+    // Nearest label at or before a word, with the distance in bytes
+    private String label(int index) {
+        Map.Entry<Integer, String> label = labels.floorEntry(index);
+        if (label == null) return "";
+        int offset = 4 * (index - label.getKey());
+        return offset == 0 ? label.getValue() : label.getValue() + "+" + offset;
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : 100.0 * part / total;
+    }
+}
@@ -0,0 +1,160 @@
+// Instruction set tables of the assembler. A mnemonic resolves to a descriptor int holding its
+// format, operand layout, opcode and funct, so the encoder dispatches on one value per line.
+// Lookups switch on the length and characters of a Lexer token, without hashing or allocation
+// This is PROG2's Isa without the cache version PROG1 has no use for. The modules share no
+// sources, so a change to the tables goes into both copies
+final class Isa {
+    // Formats
+    static final int FORMAT_R = 0;
+    static final int FORMAT_I = 1;
+    static final int FORMAT_J = 2;
+    static final int PSEUDO = 3;
+
+    // Operand layouts
+    static final int THREE_REGISTERS = 0;   // rd, rs, rt
+    static final int NO_OPERANDS = 1;       // syscall
+    static final int TARGET = 2;            // label or hex word index
+    static final int BRANCH = 3;            // rs, rt, label or offset
+    static final int UPPER_IMMEDIATE = 4;   // rt, imm
+    static final int LOAD_STORE = 5;        // rt, offset(base)
+    static final int IMMEDIATE = 6;         // rt, rs, imm
+    static final int LOAD_IMMEDIATE = 7;    // li rd, imm
+    static final int LOAD_ADDRESS = 8;      // la rd, label
+    static final int BRANCH_LESS_THAN = 9;  // blt rs, rt, label
+    static final int REGISTER_COPY = 10;    // move rd, rs
+
+    // Descriptors: format in bits 16-17, layout in bits 12-15, opcode in bits 6-11, funct in bits 0-5
+    static final int ADD = FORMAT_R << 16 | THREE_REGISTERS << 12 | 0x20;
+    static final int AND = FORMAT_R << 16 | THREE_REGISTERS << 12 | 0x24;
+    static final int OR = FORMAT_R << 16 | THREE_REGISTERS << 12 | 0x25;
+    static final int SLT = FORMAT_R << 16 | THREE_REGISTERS << 12 | 0x2a;
+    static final int SUB = FORMAT_R << 16 | THREE_REGISTERS << 12 | 0x22;
+    static final int SYSCALL = FORMAT_R << 16 | NO_OPERANDS << 12 | 0x0c;
+    static final int J = FORMAT_J << 16 | TARGET << 12 | 0x02 << 6;
+    static final int BEQ = FORMAT_I << 16 | BRANCH << 12 | 0x04 << 6;
+    static final int BNE = FORMAT_I << 16 | BRANCH << 12 | 0x05 << 6;
+    static final int LUI = FORMAT_I << 16 | UPPER_IMMEDIATE << 12 | 0x0f << 6;
+    static final int LW = FORMAT_I << 16 | LOAD_STORE << 12 | 0x23 << 6;
+    static final int SW = FORMAT_I << 16 | LOAD_STORE << 12 | 0x2b << 6;
+    static final int ADDIU = FORMAT_I << 16 | IMMEDIATE << 12 | 0x09 << 6;
+    static final int ANDI = FORMAT_I << 16 | IMMEDIATE << 12 | 0x0c << 6;
+    static final int ORI = FORMAT_I << 16 | IMMEDIATE << 12 | 0x0d << 6;
+    static final int LI = PSEUDO << 16 | LOAD_IMMEDIATE << 12;
+    static final int LA = PSEUDO << 16 | LOAD_ADDRESS << 12;
+    static final int BLT = PSEUDO << 16 | BRANCH_LESS_THAN << 12;
+    static final int MOVE = PSEUDO << 16 | REGISTER_COPY << 12;
+
+    private Isa() {
+    }
+
+    static int format(int descriptor) {
+        return descriptor >>> 16;
+    }
+
+    static int layout(int descriptor) {
+        return (descriptor >>> 12) & 0xF;
+    }
+
+    static int opcode(int descriptor) {
+        return (descriptor >>> 6) & 0x3F;
+    }
+
+    static int funct(int descriptor) {
+        return descriptor & 0x3F;
+    }
+
+    // Descriptor of the mnemonic in the token, or -1 when it is not an instruction
+    static int mnemonic(Lexer line, int token) {
+        CharSequence text = line.line();
+        int start = line.start(token);
+        switch (line.end(token) - start) {
+            case 1:
+                return text.charAt(start) == 'j' ? J : -1;
+            case 2:
+                switch (text.charAt(start)) {
+                    case 'l':
+                        char second = text.charAt(start + 1);
+                        return second == 'w' ? LW : second == 'i' ? LI : second == 'a' ? LA : -1;
+                    case 's':
+                        return text.charAt(start + 1) == 'w' ? SW : -1;
+                    case 'o':
+                        return text.charAt(start + 1) == 'r' ? OR : -1;
+                    default:
+                        return -1;
+                }
+            case 3:
+                switch (text.charAt(start)) {
+                    case 'a':
+                        return matches(text, start, "add") ? ADD : matches(text, start, "and") ? AND : -1;
+                    case 'b':
+                        return matches(text, start, "beq") ? BEQ : matches(text, start, "bne") ? BNE
+                                : matches(text, start, "blt") ? BLT : -1;
+                    case 'l':
+                        return matches(text, start, "lui") ? LUI : -1;
+                    case 'o':
+                        return matches(text, start, "ori") ? ORI : -1;
+                    case 's':
+                        return matches(text, start, "slt") ? SLT : matches(text, start, "sub") ? SUB : -1;
+                    default:
+                        return -1;
+                }
+            case 4:
+                return matches(text, start, "andi") ? ANDI : matches(text, start, "move") ? MOVE : -1;
+            case 5:
+                return matches(text, start, "addiu") ? ADDIU : -1;
+            case 7:
+                return matches(text, start, "syscall") ? SYSCALL : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // Register number of a $name or $number token, or -1 when it is not a register
+    static int register(Lexer line, int token) {
+        CharSequence text = line.line();
+        int start = line.start(token);
+        int length = line.end(token) - start;
+        if (length < 2 || length > 5 || text.charAt(start) != '$') return -1;
+        char first = text.charAt(start + 1);
+        if (length == 5) return matches(text, start + 1, "zero") ? 0 : -1;
+        if (length == 4) return -1;
+
+        int digit = first - '0';
+        if (length == 2) return digit >= 0 && digit <= 9 ? digit : -1; // $0 to $9
+
+        char second = text.charAt(start + 2);
+        int index = second - '0';
+        if (digit >= 1 && digit <= 3 && index >= 0 && index <= 9) { // $10 to $31
+            int number = digit * 10 + index;
+            return number <= 31 ? number : -1;
+        }
+        switch (first) {
+            case 'a':
+                return second == 't' ? 1 : index >= 0 && index <= 3 ? 4 + index : -1;
+            case 'v':
+                return index >= 0 && index <= 1 ? 2 + index : -1;
+            case 't':
+                return index >= 0 && index <= 7 ? 8 + index : index >= 8 && index <= 9 ? 16 + index : -1;
+            case 's':
+                return second == 'p' ? 29 : index >= 0 && index <= 7 ? 16 + index : -1;
+            case 'k':
+                return index >= 0 && index <= 1 ? 26 + index : -1;
+            case 'g':
+                return second == 'p' ? 28 : -1;
+            case 'f':
+                return second == 'p' ? 30 : -1;
+            case 'r':
+                return second == 'a' ? 31 : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // Whether text at start holds the literal; the caller has already checked the length
+    private static boolean matches(CharSequence text, int start, String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (text.charAt(start + i) != literal.charAt(i)) return false;
+        }
+        return true;
+    }
+}
@@ -1,94 +1,141 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.*;
+import java.util.function.Consumer;
 
 public class Main {
-    private static final Map<String, String> REGISTER_MAP = Map.ofEntries( // Register number relationships
-            Map.entry("$zero", "00000"), Map.entry("$at", "00001"), Map.entry("$v0", "00010"),
-            Map.entry("$v1", "00011"), Map.entry("$a0", "00100"), Map.entry("$a1", "00101"),
-            Map.entry("$a2", "00110"), Map.entry("$a3", "00111"), Map.entry("$t0", "01000"),
-            Map.entry("$t1", "01001"), Map.entry("$t2", "01010"), Map.entry("$t3", "01011"),
-            Map.entry("$t4", "01100"), Map.entry("$t5", "01101"), Map.entry("$t6", "01110"),
-            Map.entry("$t7", "01111"), Map.entry("$s0", "10000"), Map.entry("$s1", "10001"),
-            Map.entry("$s2", "10010"), Map.entry("$s3", "10011"), Map.entry("$s4", "10100"),
-            Map.entry("$s5", "10101"), Map.entry("$s6", "10110"), Map.entry("$s7", "10111"),
-            Map.entry("$t8", "11000"), Map.entry("$t9", "11001"), Map.entry("$k0", "11010"),
-            Map.entry("$k1", "11011"), Map.entry("$gp", "11100"), Map.entry("$sp", "11101"),
-            Map.entry("$fp", "11110"), Map.entry("$ra", "11111")
-    );
-
-    private static final Map<String, String> OPCODES = Map.ofEntries( // Opcodes to determine instruction
-            Map.entry("add", "000000"), Map.entry("addiu", "001001"), Map.entry("and", "000000"), Map.entry("andi", "001100"),
-            Map.entry("beq", "000100"), Map.entry("bne", "000101"), Map.entry("j", "000010"), Map.entry("lui", "001111"),
-            Map.entry("lw", "100011"), Map.entry("or", "000000"), Map.entry("ori", "001101"), Map.entry("slt", "000000"),
-            Map.entry("sub", "000000"), Map.entry("sw", "101011"), Map.entry("syscall", "000000")
-    );
-
-    private static final Map<String, String> FUNCT_CODES = Map.of( // Funct codes for R type instructions
-            "add", "100000", "and", "100100", "or", "100101", "slt", "101010",
-            "sub", "100010", "syscall", "001100"
-    );
-
-    public static void main(String[] args) {
-        String instruction = args[0].split("#")[0].trim(); // Clips off comments
-        String machineCode = assemble(instruction); // Calls assemble method
-        System.out.println(machineCode); // Prints output
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Trace to stdout. A class of its own, a method reference would bootstrap the lambda
+    // machinery on every start, which takes longer than assembling the instruction
+    // The Lexer of each server connection's thread, reused for all of its requests
+    private static final ThreadLocal<Lexer> LEXERS = new ThreadLocal<>();
+
+    private static final Consumer<String> PRINT_TRACE = new Consumer<String>() {
+        @Override
+        public void accept(String line) {
+            System.out.println(line);
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("--serve")) {
+            Server.serve(args[1], Main::handle); // Keep running and assemble requests from clients
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("--connect")) {
+            // Same output as the normal command line, assembled by a running server.
+            // Without an instruction, every line of stdin is sent as a request
+            Iterable<String> requests = args.length > 2 ? List.of(args[2])
+                    : new BufferedReader(new InputStreamReader(System.in)).lines()::iterator;
+            System.exit(Server.request(args[1], requests, System.out, System.err));
+        }
+
+        int machineCode = assemble(new Lexer().tokenize(args[0]), PRINT_TRACE); // Comments are skipped
+        System.out.println(toHex(machineCode)); // Prints output
+    }
+
+    // One server request, answered with exactly what main would print
+    private static int handle(String request, Server.Reply reply) {
+        Lexer line = LEXERS.get();
+        if (line == null) {
+            line = new Lexer();
+            LEXERS.set(line);
+        }
+        int machineCode = assemble(line.tokenize(request), reply::out);
+        reply.out(toHex(machineCode));
+        return 0;
     }
 
-    private static String assemble(String instruction) {
-        String[] parts = instruction.replaceAll("[,()]", " ").split("\\s+");
-        //System.out.println(parts[0]);
-        //System.out.println(parts[1]);
-        //System.out.println(parts[2]);
-        String mnemonic = parts[0];
-        String opcode = OPCODES.get(mnemonic);
+    // Encodes the instruction line was tokenized from. trace receives the binary of general
+    // I-type words, null encodes without tracing
+    private static int assemble(Lexer line, Consumer<String> trace) {
+        if (line.count() == 0) return 0;
+        int descriptor = Isa.mnemonic(line, 0);
 
-        if (opcode == null) return "00000000"; // Invalid instruction fallback
+        // Invalid instruction fallback, PROG1 does not expand pseudo-instructions
+        if (descriptor < 0 || Isa.format(descriptor) == Isa.PSEUDO) return 0;
+        int opcode = Isa.opcode(descriptor);
 
-        if (FUNCT_CODES.containsKey(mnemonic)) { // R-type
-            if (mnemonic.equals("syscall")) {
-                return "0000000c";
+        switch (Isa.layout(descriptor)) {
+            case Isa.THREE_REGISTERS: { // R-type
+                int rd = register(line, 1);
+                int rs = register(line, 2);
+                int rt = register(line, 3);
+                return rType(rs, rt, rd, Isa.funct(descriptor));
+            }
+            case Isa.NO_OPERANDS: // syscall
+                return Isa.funct(descriptor);
+            case Isa.TARGET: { // J-type
+                int address = line.parseHex(1);
+                return jType(opcode, address);
+            }
+            case Isa.UPPER_IMMEDIATE: { // Special case for lui I type
+                int rt = register(line, 1); // lui has only rt, rs is always $zero
+                int immediate = line.parseInt(2); // Immediate value
+                return iType(opcode, 0, rt, immediate);
             }
-            String rd = REGISTER_MAP.get(parts[1]);
-            String rs = REGISTER_MAP.get(parts[2]);
-            String rt = REGISTER_MAP.get(parts[3]);
-            return binaryToHex(opcode + rs + rt + rd + "00000" + FUNCT_CODES.get(mnemonic));
-        } else if (mnemonic.equals("j")) { // J-type
-            int address = Integer.parseInt(parts[1].replace("0x", ""), 16);
-            return binaryToHex(opcode + String.format("%26s", Integer.toBinaryString(address)).replace(' ', '0'));
-        } else if (mnemonic.equals("lui")) { // Special case for lui I type
-            String rt = REGISTER_MAP.get(parts[1]); // lui has only rt
-            String rs = "00000"; // rs is always $zero (00000) for lui
-            int immediate = Integer.decode(parts[2]); // Immediate value
-            return binaryToHex(opcode + rs + rt + String.format("%16s", Integer.toBinaryString(immediate & 0xFFFF)).replace(' ', '0'));
-        } else if (mnemonic.equals("lw") || mnemonic.equals("sw")) { // Load/store instructions
-            String rt = REGISTER_MAP.get(parts[1]); // Destination register
-            String rs = REGISTER_MAP.get(parts[3]); // Base register (inside parentheses)
-            int immediate = Integer.decode(parts[2]); // Offset
-            return binaryToHex(opcode + rs + rt + String.format("%16s", Integer.toBinaryString(immediate & 0xFFFF)).replace(' ', '0'));
-        } else { // General I-type instructions, including beq
-            String rs = REGISTER_MAP.get(parts[1]); // Corrected order for I-type
-            String rt = REGISTER_MAP.get(parts[2]);
-            int immediate = Integer.decode(parts[3]);
-
-            if (mnemonic.equals("ori")) {
-                String temp = rs;
-                rs = rt;
-                rt = temp;
+            case Isa.LOAD_STORE: { // Load/store instructions
+                int rt = register(line, 1); // Destination register
+                int rs = register(line, 3); // Base register (inside parentheses)
+                int immediate = line.parseInt(2); // Offset
+                return iType(opcode, rs, rt, immediate);
             }
+            default: { // General I-type instructions, including beq
+                int rs = register(line, 1);
+                int rt = register(line, 2);
+                int immediate = line.parseInt(3);
 
-            // Ensure immediate is 16-bit signed
-            String immediateBinary = String.format("%16s", Integer.toBinaryString(immediate)).replace(' ', '0');
+                if (Isa.layout(descriptor) == Isa.IMMEDIATE) { // addiu, andi and ori name rt first
+                    int temp = rs;
+                    rs = rt;
+                    rt = temp;
+                }
 
-            // If the number is negative, apply sign extension
-            if (immediate < 0) {
-                immediateBinary = immediateBinary.substring(immediateBinary.length() - 16);
+                // Immediate is truncated to 16 bits, which also sign extends negative values
+                int word = iType(opcode, rs, rt, immediate);
+                if (trace != null) trace.accept(toBinary(word));
+                return word;
             }
+        }
+    }
+
+    private static int register(Lexer line, int token) {
+        int number = Isa.register(line, token);
+        if (number < 0) {
+            throw new IllegalArgumentException("Unknown register: " + line.text(token));
+        }
+        return number;
+    }
+
+    // Field packing for the three instruction formats
+    private static int rType(int rs, int rt, int rd, int funct) {
+        return (rs << 21) | (rt << 16) | (rd << 11) | funct; // opcode and shmt are always zero
+    }
+
+    private static int iType(int opcode, int rs, int rt, int immediate) {
+        return (opcode << 26) | (rs << 21) | (rt << 16) | (immediate & 0xFFFF);
+    }
 
-            System.out.println(opcode + rs + rt + immediateBinary);
-            return binaryToHex(opcode + rs + rt + immediateBinary);
+    private static int jType(int opcode, int index) {
+        return (opcode << 26) | (index & 0x03FFFFFF);
+    }
+
+    private static String toBinary(int word) {
+        char[] bits = new char[32];
+        for (int i = 0; i < 32; i++) {
+            bits[i] = (char) ('0' + ((word >>> (31 - i)) & 1));
         }
+        return new String(bits);
     }
 
-    private static String binaryToHex(String binary) {
-        return String.format("%08x", Long.parseLong(binary, 2));
+    private static String toHex(int word) {
+        char[] digits = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            digits[i] = HEX_DIGITS[word & 0xF];
+            word >>>= 4;
+        }
+        return new String(digits);
     }
 }
@@ -0,0 +1,176 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Long-running service mode. The tables stay loaded and the hot paths stay JIT-compiled,
+// so scripts can send many requests without starting a JVM for each one.
+//
+// The address is a port number (TCP on the loopback interface) or a Unix domain socket path.
+// Protocol, one request per line: the argument the command line tool would be given.
+// Each reply is what the tool would print, as "out <line>" and "err <line>" lines,
+// followed by "end <exit status>". Requests on one connection are answered in order.
+//
+// Meant for scripts on the same machine, which is all a loopback port or a socket file admits.
+// At most MAX_CONNECTIONS are served at once, a connection past that is answered with an error
+// and closed. PROG1 and PA2_MS1 each carry a copy of this file, the modules share no sources.
+class Server {
+    static final int MAX_CONNECTIONS = 64;
+
+    interface Handler {
+        // Handles one request and returns the exit status the command line tool would use
+        int handle(String request, Reply reply);
+    }
+
+    static class Reply {
+        private final Writer writer;
+
+        Reply(Writer writer) {
+            this.writer = writer;
+        }
+
+        void out(String line) {
+            send("out ", line);
+        }
+
+        void err(String line) {
+            send("err ", line);
+        }
+
+        private void send(String channel, String line) {
+            try {
+                writer.write(channel);
+                writer.write(line);
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static void serve(String address, Handler handler) throws IOException {
+        SocketAddress socketAddress = address(address);
+        ServerSocketChannel server;
+        if (socketAddress instanceof UnixDomainSocketAddress) {
+            Path path = ((UnixDomainSocketAddress) socketAddress).getPath();
+            Files.deleteIfExists(path);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> path.toFile().delete()));
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(socketAddress);
+
+        // Connections are mostly idle between requests, so each one gets its own thread, up to
+        // MAX_CONNECTIONS of them. Idle threads end after a minute
+        ExecutorService connections = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>());
+        try (server) {
+            while (true) {
+                SocketChannel connection = server.accept();
+                try {
+                    connections.execute(() -> handleConnection(connection, handler));
+                } catch (RejectedExecutionException e) {
+                    refuse(connection);
+                }
+            }
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    private static void refuse(SocketChannel connection) {
+        try (connection; Writer out = new OutputStreamWriter(Channels.newOutputStream(connection),
+                StandardCharsets.UTF_8)) {
+            out.write("err Too many connections, at most " + MAX_CONNECTIONS + "\nend 1\n");
+        } catch (IOException e) {
+            System.err.println("Connection closed: " + e.getMessage());
+        }
+    }
+
+    private static void handleConnection(SocketChannel connection, Handler handler) {
+        try (connection;
+             BufferedReader in = new BufferedReader(new InputStreamReader(
+                     Channels.newInputStream(connection), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(
+                     Channels.newOutputStream(connection), StandardCharsets.UTF_8))) {
+            Reply reply = new Reply(out);
+            String request;
+            while ((request = in.readLine()) != null) {
+                int status;
+                try {
+                    status = handler.handle(request, reply);
+                } catch (RuntimeException e) {
+                    reply.err(e.toString());
+                    status = 1;
+                }
+                out.write("end " + status + "\n");
+                // Every reply goes out before the next read, which may block on a request that
+                // has only partly arrived
+                out.flush();
+            }
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Connection closed: " + e.getMessage());
+        }
+    }
+
+    // Client side: sends each request, prints the replies like the command line tool would and
+    // returns the exit status of the last one that failed, 0 when none did
+    static int request(String address, Iterable<String> requests, PrintStream out, PrintStream err)
+            throws IOException {
+        SocketAddress socketAddress = address(address);
+        try (SocketChannel connection = SocketChannel.open(socketAddress);
+             BufferedReader in = new BufferedReader(new InputStreamReader(
+                     Channels.newInputStream(connection), StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(
+                     Channels.newOutputStream(connection), StandardCharsets.UTF_8))) {
+            int status = 0;
+            for (String request : requests) {
+                writer.write(request.replace('\n', ' '));
+                writer.write('\n');
+                writer.flush();
+
+                String line;
+                while ((line = in.readLine()) != null && !line.startsWith("end ")) {
+                    if (line.startsWith("err ")) {
+                        err.println(line.substring(4));
+                    } else {
+                        out.println(line.substring(4));
+                    }
+                }
+                if (line == null) {
+                    throw new IOException("Server closed the connection");
+                }
+                int requestStatus = Integer.parseInt(line.substring(4));
+                if (requestStatus != 0) status = requestStatus;
+            }
+            return status;
+        }
+    }
+
+    private static SocketAddress address(String address) {
+        if (address.chars().allMatch(Character::isDigit)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        return UnixDomainSocketAddress.of(address);
+    }
+}
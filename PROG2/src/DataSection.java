@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+// Encoder of a .data section. Directives are packed straight into one growable little-endian
+// byte array, .word and .half values a byte at a time from the low end, so a table of any
+// length costs a tokenize and a few stores per value and no objects per element. No VarHandle
+// views either, creating them loads some 40 more classes and made loading this class take 16 ms
+// instead of 5, more than the rest of a small assembly. The byte stores are no slower.
+// segment() turns the bytes into words with one bulk copy, zero padded to a whole word.
+//   .word n, ...   .half n, ...   .byte n, ...   aligned to their size, labels included. Numbers only,
+//                                              a label as a value is an error
+//   .space n       n zero bytes
+//   .align n       pads to a multiple of 2^n, n from 0 to 3
+//   .ascii "s"     the bytes of s as written, between the first and the last quote
+//   .asciiz "s"    the bytes of s and a terminating 0, padded to a whole word as always
+//   anything else  ignored with a warning, like .globl in the sources this always accepted
+class DataSection {
+    // Bump whenever a directive packs differently or a data label lands elsewhere. ObjectCache
+    // keys include it next to Isa.VERSION, so modules cached with the old packing are not reused
+    static final int VERSION = 2;
+
+    private final int address;
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Lexer line = new Lexer();
+    private byte[] bytes = new byte[256];
+    private int size;
+
+    DataSection(int address) {
+        this.address = address;
+    }
+
+    // Adds one line of the section, already without its comment. An invalid directive is
+    // reported with lineNumber, the line of the source file it came from
+    void add(String source, int lineNumber) {
+        try {
+            add(source);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage());
+        }
+    }
+
+    private void add(String source) {
+        int quote = source.indexOf('"');
+        if (quote >= 0) {
+            addString(source, quote);
+            return;
+        }
+        line.tokenize(source);
+        String directive = line.count() == 0 ? "" : line.text(0);
+        int values = line.count() - 1;
+        switch (directive) {
+            case ".word":
+                align(4);
+                label();
+                reserve(4L * values);
+                for (int i = 1; i <= values; i++) {
+                    int value = parseWord(i);
+                    bytes[size++] = (byte) value;
+                    bytes[size++] = (byte) (value >>> 8);
+                    bytes[size++] = (byte) (value >>> 16);
+                    bytes[size++] = (byte) (value >>> 24);
+                }
+                break;
+            case ".half":
+                align(2);
+                label();
+                reserve(2L * values);
+                for (int i = 1; i <= values; i++) {
+                    int value = parseRanged(i, 0xFFFF, directive);
+                    bytes[size++] = (byte) value;
+                    bytes[size++] = (byte) (value >>> 8);
+                }
+                break;
+            case ".byte":
+                label();
+                reserve(values);
+                for (int i = 1; i <= values; i++) {
+                    bytes[size++] = (byte) parseRanged(i, 0xFF, directive);
+                }
+                break;
+            case ".space":
+                label();
+                int length = parseOperand(directive, 0, Integer.MAX_VALUE);
+                reserve(length);
+                size += length; // The array is zero past size
+                break;
+            case ".align":
+                align(1 << parseOperand(directive, 0, 3));
+                label();
+                break;
+            case "":
+                label();
+                break;
+            default:
+                label();
+                ignore(directive, source);
+                break;
+        }
+    }
+
+    // Encoded section, labels at their addresses
+    Main.Segment segment() {
+        int[] words = new int[(size + 3) / 4];
+        ByteBuffer.wrap(bytes, 0, 4 * words.length).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(words);
+        return new Main.Segment(words, words.length, labels);
+    }
+
+    Map<String, Integer> labels() {
+        return labels;
+    }
+
+    // .ascii and .asciiz. The label is whatever comes before a ':' ahead of the quote,
+    // so a ':' inside the string is just a character
+    private void addString(String source, int quote) {
+        int colon = source.lastIndexOf(':', quote);
+        String directive = source.substring(colon + 1, quote).trim();
+        if (colon >= 0) labels.put(source.substring(0, colon).trim(), address + size);
+        if (!directive.equals(".ascii") && !directive.equals(".asciiz")) {
+            ignore(directive, source);
+            return;
+        }
+        int end = source.lastIndexOf('"');
+        if (end == quote) throw new IllegalArgumentException("Unterminated string: " + source);
+        byte[] text = source.substring(quote + 1, end).getBytes();
+        reserve(text.length + 4L);
+        System.arraycopy(text, 0, bytes, size, text.length);
+        size += text.length;
+        if (directive.equals(".asciiz")) {
+            size++; // Terminator, already zero
+            size = (size + 3) & ~3;
+        }
+    }
+
+    // Directives this assembler does not know, such as .globl, are skipped as they always were,
+    // a label in front of one still marks the current address
+    private static void ignore(String directive, String source) {
+        System.err.println("Ignoring unknown data directive " + directive + ": " + source.trim());
+    }
+
+    private void label() {
+        if (line.hasLabel()) labels.put(line.label(), address + size);
+    }
+
+    private void align(int alignment) {
+        int aligned = (size + alignment - 1) & -alignment;
+        reserve(aligned - size);
+        size = aligned;
+    }
+
+    // Only numbers, the address of a label is not known here for text labels or in a linked module
+    private int parseWord(int token) {
+        if (line.isLabel(token)) {
+            throw new IllegalArgumentException("Labels are not supported as .word values: " + line.text(token));
+        }
+        return line.parseWord(token);
+    }
+
+    // A value that fits in the bits of mask, signed or not
+    private int parseRanged(int token, int mask, String directive) {
+        int value = line.parseInt(token);
+        if (value < -(mask >>> 1) - 1 || value > mask) {
+            throw new IllegalArgumentException("Value out of range for " + directive + ": " + line.text(token));
+        }
+        return value;
+    }
+
+    private int parseOperand(String directive, int min, int max) {
+        if (line.count() != 2) throw new IllegalArgumentException(directive + " takes one operand");
+        int value = line.parseInt(1);
+        if (value < min || value > max) {
+            throw new IllegalArgumentException("Invalid operand for " + directive + ": " + line.text(1));
+        }
+        return value;
+    }
+
+    // Room for length more bytes and the padding to the next word
+    private void reserve(long length) {
+        long needed = size + length + 3;
+        if (needed > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Data section too large");
+        if (needed > bytes.length) {
+            byte[] grown = new byte[(int) Math.max(needed, Math.min(2L * bytes.length, Integer.MAX_VALUE - 8))];
+            System.arraycopy(bytes, 0, grown, 0, size);
+            bytes = grown;
+        }
+    }
+}
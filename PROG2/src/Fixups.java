@@ -0,0 +1,106 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Label references that cannot be encoded yet. In the single-pass assembler a word that names
+// a label which is not defined yet is encoded with a zero field and recorded here under that
+// label; the field is patched in place as soon as the label is defined. A relocatable Fixups
+// holds the relocations of one module of a multi-file program instead: every jump and la, and
+// every branch out of the module, patched by link() once the modules have been laid out
+class Fixups {
+    static final int JUMP = 0;   // 26-bit word index of a j instruction
+    static final int BRANCH = 1; // 16-bit word offset of beq/bne, relative to the next instruction
+    static final int UPPER = 2;  // Upper 16 bits of an address, the lui of la
+    static final int LOWER = 3;  // Lower 16 bits of an address, the ori of la
+
+    private final int baseAddress;
+    private final boolean relocatable;
+    // Per label: word indexes shifted left by two, with the fixup kind in the low bits
+    private final Map<String, int[]> pending = new HashMap<>();
+
+    Fixups(int baseAddress) {
+        this(baseAddress, false);
+    }
+
+    Fixups(int baseAddress, boolean relocatable) {
+        this.baseAddress = baseAddress;
+        this.relocatable = relocatable;
+    }
+
+    // Whether absolute references must be recorded even when their label is known
+    boolean isRelocatable() {
+        return relocatable;
+    }
+
+    void add(String label, int kind, int wordIndex) {
+        int[] references = pending.get(label);
+        if (references == null) {
+            references = new int[]{1, 0, 0, 0}; // Element 0 is the number of used slots
+        } else if (references[0] == references.length) {
+            references = Arrays.copyOf(references, references.length * 2);
+        }
+        references[references[0]++] = (wordIndex << 2) | kind;
+        pending.put(label, references);
+    }
+
+    // Patches every word waiting for this label
+    void define(String label, int address, int[] words) {
+        int[] references = pending.remove(label);
+        if (references == null) return;
+        for (int i = 1; i < references[0]; i++) {
+            patch(words, references[i], address, baseAddress);
+        }
+    }
+
+    // Labels still waiting, each with its references in elements 1 to [0] - 1 as (wordIndex << 2) | kind
+    Map<String, int[]> pending() {
+        return pending;
+    }
+
+    // Called at the end of the input, every referenced label must have been defined by then
+    void checkResolved() {
+        if (!pending.isEmpty()) {
+            throw new IllegalArgumentException("Undefined label: " + pending.keySet().iterator().next());
+        }
+    }
+
+    // Patches the relocations of a module whose words were moved to start at textAddress.
+    // Jumps and branches take text labels, la takes data labels and loads 0 for anything else,
+    // the same as when the modules are assembled as one file
+    void link(int textAddress, int[] words, Map<String, Integer> textLabels, Map<String, Integer> dataLabels) {
+        for (Map.Entry<String, int[]> entry : pending.entrySet()) {
+            int[] references = entry.getValue();
+            Integer textTarget = textLabels.get(entry.getKey());
+            Integer dataTarget = dataLabels.get(entry.getKey());
+            for (int i = 1; i < references[0]; i++) {
+                int kind = references[i] & 3;
+                if (kind == UPPER || kind == LOWER) {
+                    patch(words, references[i], dataTarget == null ? 0 : dataTarget, textAddress);
+                } else if (textTarget != null) {
+                    patch(words, references[i], textTarget, textAddress);
+                } else {
+                    throw new IllegalArgumentException("Undefined label: " + entry.getKey());
+                }
+            }
+        }
+    }
+
+    private static void patch(int[] words, int reference, int address, int baseAddress) {
+        int wordIndex = reference >>> 2;
+        switch (reference & 3) {
+            case JUMP:
+                words[wordIndex] = (words[wordIndex] & ~0x03FFFFFF) | ((address >> 2) & 0x03FFFFFF);
+                break;
+            case BRANCH:
+                int offset = (address - (baseAddress + 4 * wordIndex + 4)) >> 2;
+                words[wordIndex] = (words[wordIndex] & 0xFFFF0000) | (offset & 0xFFFF);
+                break;
+            case UPPER:
+                words[wordIndex] = (words[wordIndex] & 0xFFFF0000) | ((address >> 16) & 0xFFFF);
+                break;
+            default:
+                words[wordIndex] = (words[wordIndex] & 0xFFFF0000) | (address & 0xFFFF);
+                break;
+        }
+    }
+}
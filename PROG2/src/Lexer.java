@@ -0,0 +1,185 @@
+// Splits one line of assembly into tokens in a single scan, without regular expressions or
+// substrings. Whitespace, commas and parentheses separate tokens and '#' starts a comment.
+// A leading "name:" is kept apart as the line's label. Tokens are offsets into the line and
+// their text is only created on request, which the assembler does for label names alone.
+// One Lexer is reused for every line read by a thread
+final class Lexer {
+    private CharSequence line;
+    private int count;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int labelStart;
+    private int labelEnd;
+    private int instructionEnd;
+
+    Lexer tokenize(CharSequence line) {
+        this.line = line;
+        count = 0;
+        labelStart = -1;
+        labelEnd = -1;
+
+        int end = line.length();
+        int colon = -1;
+        for (int i = 0; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '#') {
+                end = i;
+            } else if (c == ':' && colon < 0) {
+                colon = i;
+            }
+        }
+
+        int position = 0;
+        if (colon >= 0) {
+            labelStart = skipSpace(0, colon);
+            labelEnd = colon;
+            while (labelEnd > labelStart && line.charAt(labelEnd - 1) <= ' ') labelEnd--;
+            position = colon + 1;
+        }
+
+        while (position < end) {
+            if (isSeparator(line.charAt(position))) {
+                position++;
+                continue;
+            }
+            int start = position;
+            while (position < end && !isSeparator(line.charAt(position))) position++;
+            if (count == starts.length) {
+                starts = java.util.Arrays.copyOf(starts, count * 2);
+                ends = java.util.Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = position;
+            count++;
+        }
+        instructionEnd = end;
+        while (instructionEnd > 0 && line.charAt(instructionEnd - 1) <= ' ') instructionEnd--;
+        return this;
+    }
+
+    private int skipSpace(int position, int end) {
+        while (position < end && line.charAt(position) <= ' ') position++;
+        return position;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c <= ' ' || c == ',' || c == '(' || c == ')';
+    }
+
+    CharSequence line() {
+        return line;
+    }
+
+    int count() {
+        return count;
+    }
+
+    boolean hasLabel() {
+        return labelStart >= 0;
+    }
+
+    String label() {
+        return line.subSequence(labelStart, labelEnd).toString();
+    }
+
+    int start(int token) {
+        check(token);
+        return starts[token];
+    }
+
+    int end(int token) {
+        check(token);
+        return ends[token];
+    }
+
+    // End of the instruction after the label, without the comment and trailing whitespace
+    int instructionEnd() {
+        return instructionEnd;
+    }
+
+    String text(int token) {
+        return line.subSequence(start(token), end(token)).toString();
+    }
+
+    // Branch and jump operands are either labels or numbers
+    boolean isLabel(int token) {
+        char first = line.charAt(start(token));
+        return !Character.isDigit(first) && first != '-' && first != '+';
+    }
+
+    // Same rules as Integer.decode: optional sign, then 0x/0X hex, leading 0 octal or decimal
+    int parseInt(int token) {
+        return parse(token, Integer.MAX_VALUE);
+    }
+
+    // Like parseInt, but values up to 0xFFFFFFFF are also taken, as the bits of a data word
+    int parseWord(int token) {
+        return parse(token, 0xFFFFFFFFL);
+    }
+
+    private int parse(int token, long max) {
+        int position = start(token);
+        int end = end(token);
+        boolean negative = false;
+        if (position < end && (line.charAt(position) == '-' || line.charAt(position) == '+')) {
+            negative = line.charAt(position) == '-';
+            position++;
+        }
+        int radix = 10;
+        if (position + 1 < end && line.charAt(position) == '0'
+                && (line.charAt(position + 1) == 'x' || line.charAt(position + 1) == 'X')) {
+            radix = 16;
+            position += 2;
+        } else if (position + 1 < end && line.charAt(position) == '0') {
+            radix = 8;
+            position++;
+        }
+        long value = parseDigits(token, position, end, radix);
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > max) {
+            throw new NumberFormatException("Value out of range: " + text(token));
+        }
+        return (int) value;
+    }
+
+    // Hexadecimal with an optional sign and 0x prefix, as used for j targets
+    int parseHex(int token) {
+        int position = start(token);
+        int end = end(token);
+        boolean negative = false;
+        if (position < end && (line.charAt(position) == '-' || line.charAt(position) == '+')) {
+            negative = line.charAt(position) == '-';
+            position++;
+        }
+        if (position + 1 < end && line.charAt(position) == '0' && line.charAt(position + 1) == 'x') {
+            position += 2;
+        }
+        long value = parseDigits(token, position, end, 16);
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Value out of range: " + text(token));
+        }
+        return (int) value;
+    }
+
+    private long parseDigits(int token, int position, int end, int radix) {
+        if (position == end) {
+            throw new NumberFormatException("Not a number: " + text(token));
+        }
+        long value = 0;
+        for (; position < end; position++) {
+            int digit = Character.digit(line.charAt(position), radix);
+            if (digit < 0 || value > 0xFFFFFFFFL) {
+                throw new NumberFormatException("Not a number: " + text(token));
+            }
+            value = value * radix + digit;
+        }
+        return value;
+    }
+
+    private void check(int token) {
+        if (token >= count) {
+            throw new IllegalArgumentException("Missing operand in: " + line);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Encodings of previously assembled text lines, saved next to the output by --incremental.
+// Entries are keyed by a hash of the line text. A line that references a label also records
+// its own address and the label's address, UNRESOLVED while the label is not defined. The
+// label is looked up where the encoder looks it up, among the data labels for la and the text
+// labels for branches and jumps, so a text and a data label of the same name do not mix. It is
+// reused while the label has not moved, or for branches while the distance to the label has
+// not changed, so code that only shifted is still copied. A line whose label was not defined
+// is reused only while it still is not. Such lines are additionally keyed by text and
+// address, so repeated lines like "j loop" at different addresses each keep their own entry
+class LineCache {
+    private static final int MAGIC = 0x4d4c4331; // "MLC1"
+    // Bump whenever the file layout or the validation of entries changes. The file also holds
+    // Isa.VERSION, as ObjectCache keys do, so encodings made with old rules are not reused. Data
+    // words are not cached and an la is checked against its label's address, so the file does
+    // not need DataSection.VERSION
+    private static final int VERSION = 4;
+    static final int UNRESOLVED = 0; // Label address of an undefined label, no label is at 0
+
+    static class Entry {
+        final long hash;
+        final int[] words;
+        final String label; // Referenced label, or null when the encoding does not depend on one
+        final boolean relative; // Branch offsets depend on the distance to the label
+        final boolean data;     // The label is a data label, as for la
+        final int address;
+        final int labelAddress;
+
+        Entry(long hash, int[] words, String label, boolean relative, boolean data, int address,
+              int labelAddress) {
+            this.hash = hash;
+            this.words = words;
+            this.label = label;
+            this.relative = relative;
+            this.data = data;
+            this.address = address;
+            this.labelAddress = labelAddress;
+        }
+
+        boolean isValidAt(int address, Map<String, Integer> textLabels, Map<String, Integer> dataLabels) {
+            if (label == null) return true;
+            Integer target = (data ? dataLabels : textLabels).get(label);
+            if (target == null || labelAddress == UNRESOLVED) {
+                return target == null && labelAddress == UNRESOLVED; // Undefined then and now
+            }
+            return relative ? target - address == labelAddress - this.address : target == labelAddress;
+        }
+    }
+
+    // Open addressing table with linear probing, so lookups do not box the 64-bit keys.
+    // Key 0 marks an empty slot; a line hashing to 0 is simply never cached
+    private long[] keys = new long[1024];
+    private Entry[] values = new Entry[1024];
+    private int size;
+    private final List<Entry> entries = new ArrayList<>();
+
+    // The entry for this line at this address if there is one, otherwise any entry for the text
+    Entry get(long hash, int address) {
+        Entry entry = find(positionKey(hash, address));
+        return entry != null ? entry : find(hash);
+    }
+
+    void put(Entry entry) {
+        if (find(entry.hash) == entry) return; // A repeated line reusing the same entry
+        entries.add(entry);
+        store(entry.hash, entry);
+        if (entry.label != null) {
+            store(positionKey(entry.hash, entry.address), entry);
+        }
+    }
+
+    private static long positionKey(long hash, int address) {
+        return hash ^ address * 0x9e3779b97f4a7c15L;
+    }
+
+    private Entry find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = (int) (key ^ key >>> 32) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return values[slot];
+        }
+        return null;
+    }
+
+    private void store(long key, Entry entry) {
+        if (key == 0) return;
+        if (2 * (size + 1) > keys.length) {
+            long[] oldKeys = keys;
+            Entry[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Entry[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) store(oldKeys[i], oldValues[i]);
+            }
+        }
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ key >>> 32) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == 0) size++;
+        keys[slot] = key;
+        values[slot] = entry;
+    }
+
+    // 64-bit FNV-1a over the characters line[start, end)
+    static long hash(CharSequence line, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= line.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // File layout: magic, version, Isa.VERSION, label count, entry count, the labels as
+    // {short length, UTF-8 bytes}, then each entry as {long hash, int label index or -1,
+    // byte flags (1 relative, 2 data), int address, int label address, int word count, words}.
+    // A missing, outdated or unreadable cache is treated as empty
+    static LineCache load(Path file) {
+        LineCache cache = new LineCache();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getInt() != Isa.VERSION) {
+                return cache;
+            }
+            String[] labels = new String[in.getInt()];
+            int count = in.getInt();
+            for (int i = 0; i < labels.length; i++) {
+                byte[] name = new byte[in.getShort()];
+                in.get(name);
+                labels[i] = new String(name, StandardCharsets.UTF_8);
+            }
+            for (int i = 0; i < count; i++) {
+                long hash = in.getLong();
+                int label = in.getInt();
+                byte flags = in.get();
+                int address = in.getInt();
+                int labelAddress = in.getInt();
+                int[] words = new int[in.getInt()];
+                in.asIntBuffer().get(words);
+                in.position(in.position() + 4 * words.length);
+                cache.put(new Entry(hash, words, label < 0 ? null : labels[label], (flags & 1) != 0,
+                        (flags & 2) != 0, address, labelAddress));
+            }
+        } catch (NoSuchFileException e) {
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable cache " + file + ": " + e);
+            return new LineCache();
+        }
+        return cache;
+    }
+
+    void save(Path file) throws IOException {
+        Map<String, Integer> labelIndexes = new HashMap<>();
+        List<byte[]> labels = new ArrayList<>();
+        long size = 20;
+        for (Entry entry : entries) {
+            if (entry.label != null && !labelIndexes.containsKey(entry.label)) {
+                byte[] name = entry.label.getBytes(StandardCharsets.UTF_8);
+                labelIndexes.put(entry.label, labels.size());
+                labels.add(name);
+                size += 2 + name.length;
+            }
+            size += 25 + 4L * entry.words.length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(size));
+        out.putInt(MAGIC).putInt(VERSION).putInt(Isa.VERSION).putInt(labels.size()).putInt(entries.size());
+        for (byte[] name : labels) {
+            out.putShort((short) name.length).put(name);
+        }
+        for (Entry entry : entries) {
+            out.putLong(entry.hash);
+            out.putInt(entry.label == null ? -1 : labelIndexes.get(entry.label));
+            out.put((byte) ((entry.relative ? 1 : 0) | (entry.data ? 2 : 0)));
+            out.putInt(entry.address).putInt(entry.labelAddress).putInt(entry.words.length);
+            for (int word : entry.words) {
+                out.putInt(word);
+            }
+        }
+        out.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Listing of the assembled text written by --listing, one line per word:
+//   address  word  fields in binary  source line
+// The fields are split by format (op rs rt rd shamt funct, op rs rt immediate, or op target)
+// and the source line is on the first word it produced. Lines are formatted into a batch on
+// the assembling thread, and full batches go to a background thread that does the file I/O.
+// Batches are recycled, so the assembler only waits when the disk is BATCHES batches behind
+class ListingWriter implements Closeable {
+    private static final int BATCH_SIZE = 1 << 16;
+    private static final int BATCHES = 4;
+    private static final int FIELDS_WIDTH = 37; // R-type fields with their separators, the widest
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BATCHES + 1);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BATCHES);
+    private final Thread writer;
+    private volatile IOException failure;
+    private ByteBuffer batch;
+
+    ListingWriter(String outputFile) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        for (int i = 0; i < BATCHES; i++) {
+            free.add(ByteBuffer.allocate(BATCH_SIZE));
+        }
+        batch = free.remove();
+        writer = new Thread(() -> drain(channel), "listing-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // A line for one word. source is the line that produced it, or null for the further
+    // words of a pseudo-instruction
+    void word(int address, int word, String source) throws IOException {
+        byte[] text = source == null ? null : source.getBytes(StandardCharsets.UTF_8);
+        reserve(8 + 2 + 8 + 2 + FIELDS_WIDTH + 2 + (text == null ? 0 : text.length) + 1);
+        hex(address);
+        batch.put((byte) ' ').put((byte) ' ');
+        hex(word);
+        batch.put((byte) ' ').put((byte) ' ');
+        int opcode = word >>> 26;
+        int start = batch.position();
+        if (opcode == 0) {
+            fields(word, 6, 5, 5, 5, 5, 6);
+        } else if (opcode == 2 || opcode == 3) {
+            fields(word, 6, 26);
+        } else {
+            fields(word, 6, 5, 5, 16);
+        }
+        if (text != null) {
+            while (batch.position() < start + FIELDS_WIDTH + 2) {
+                batch.put((byte) ' ');
+            }
+            batch.put(text);
+        }
+        batch.put((byte) '\n');
+    }
+
+    // A line for a label that stands alone, at the address of the next word
+    void label(int address, String source) throws IOException {
+        byte[] text = source.getBytes(StandardCharsets.UTF_8);
+        reserve(8 + 2 + 8 + 2 + FIELDS_WIDTH + 2 + text.length + 1);
+        hex(address);
+        for (int i = 0; i < 2 + 8 + 2 + FIELDS_WIDTH + 2; i++) {
+            batch.put((byte) ' ');
+        }
+        batch.put(text).put((byte) '\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+        submit();
+        put(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the listing", e);
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void hex(int value) {
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            batch.put(HEX_DIGITS[(value >>> shift) & 0xF]);
+        }
+    }
+
+    private void fields(int word, int... widths) {
+        int shift = 32;
+        for (int i = 0; i < widths.length; i++) {
+            if (i > 0) batch.put((byte) ' ');
+            for (int bit = 0; bit < widths[i]; bit++) {
+                batch.put((byte) ('0' + ((word >>> --shift) & 1)));
+            }
+        }
+    }
+
+    // Makes room for one line, handing the batch over when it is full
+    private void reserve(int length) throws IOException {
+        if (failure != null) throw failure;
+        if (batch.remaining() >= length) return;
+        submit();
+        batch = length > BATCH_SIZE ? ByteBuffer.allocate(length) : take(); // A very long source line
+    }
+
+    private void submit() throws IOException {
+        batch.flip();
+        put(batch);
+    }
+
+    private void drain(FileChannel channel) {
+        try (channel) {
+            for (ByteBuffer next = full.take(); next != END; next = full.take()) {
+                try {
+                    while (failure == null && next.hasRemaining()) {
+                        channel.write(next);
+                    }
+                } catch (IOException e) {
+                    failure = e; // Keep recycling so the assembling thread never blocks for good
+                }
+                next.clear();
+                if (next.capacity() == BATCH_SIZE) free.offer(next);
+            }
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+        } catch (InterruptedException e) {
+            if (failure == null) failure = new IOException("Listing writer interrupted", e);
+        }
+    }
+
+    private void put(ByteBuffer buffer) throws IOException {
+        try {
+            full.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the listing", e);
+        }
+    }
+
+    private ByteBuffer take() throws IOException {
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the listing", e);
+        }
+    }
+}
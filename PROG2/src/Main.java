@@ -1,68 +1,365 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
 
 public class Main {
-    private static final Map<String, String> REGISTER_MAP = Map.ofEntries( // Register number relationships
-            Map.entry("$zero", "00000"), Map.entry("$at", "00001"), Map.entry("$v0", "00010"),
-            Map.entry("$v1", "00011"), Map.entry("$a0", "00100"), Map.entry("$a1", "00101"),
-            Map.entry("$a2", "00110"), Map.entry("$a3", "00111"), Map.entry("$t0", "01000"),
-            Map.entry("$t1", "01001"), Map.entry("$t2", "01010"), Map.entry("$t3", "01011"),
-            Map.entry("$t4", "01100"), Map.entry("$t5", "01101"), Map.entry("$t6", "01110"),
-            Map.entry("$t7", "01111"), Map.entry("$s0", "10000"), Map.entry("$s1", "10001"),
-            Map.entry("$s2", "10010"), Map.entry("$s3", "10011"), Map.entry("$s4", "10100"),
-            Map.entry("$s5", "10101"), Map.entry("$s6", "10110"), Map.entry("$s7", "10111"),
-            Map.entry("$t8", "11000"), Map.entry("$t9", "11001"), Map.entry("$k0", "11010"),
-            Map.entry("$k1", "11011"), Map.entry("$gp", "11100"), Map.entry("$sp", "11101"),
-            Map.entry("$fp", "11110"), Map.entry("$ra", "11111")
-    );
-
-    private static final Map<String, String> OPCODES = Map.ofEntries( // Opcodes to determine instruction
-            Map.entry("add", "000000"), Map.entry("addiu", "001001"), Map.entry("and", "000000"), Map.entry("andi", "001100"),
-            Map.entry("beq", "000100"), Map.entry("bne", "000101"), Map.entry("j", "000010"), Map.entry("lui", "001111"),
-            Map.entry("lw", "100011"), Map.entry("or", "000000"), Map.entry("ori", "001101"), Map.entry("slt", "000000"),
-            Map.entry("sub", "000000"), Map.entry("sw", "101011"), Map.entry("syscall", "000000")
-    );
-
-    private static final Map<String, String> FUNCT_CODES = Map.of( // Funct codes for R type instructions
-            "add", "100000", "and", "100100", "or", "100101", "slt", "101010",
-            "sub", "100010", "syscall", "001100"
-    );
-
     public static void main(String[] args) {
-        if (args.length < 1) {
-            System.err.println("Usage: java Main input.asm");
+        Options options = new Options();
+        List<String> inputFiles = new ArrayList<>();
+        String outputName = null;
+        String metricsFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--stream")) {
+                options.streaming = true; // Constant memory mode, reads the input twice
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                options.threads = parseCount(args[++i]); // Parallel second pass
+            } else if (args[i].equals("--format") && i + 1 < args.length) {
+                options.format = OutputFormat.fromName(args[++i]); // hex, bin or obj
+            } else if (args[i].equals("--big-endian")) {
+                options.byteOrder = ByteOrder.BIG_ENDIAN; // Word order for bin and obj output
+            } else if (args[i].equals("--optimize")) {
+                options.optimize = true; // Shortest pseudo-instruction expansions, far branches relaxed
+            } else if (args[i].equals("--incremental")) {
+                options.incremental = true; // Reuse unchanged lines from baseName.cache
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                options.cacheDirectory = Paths.get(args[++i]); // Reuse modules assembled from the same source
+            } else if (args[i].equals("--cache-limit") && i + 1 < args.length) {
+                options.cacheLimit = parseMegabytes(args[++i]); // Size of the cache in MB
+            } else if (args[i].equals("--output") && i + 1 < args.length) {
+                outputName = args[++i]; // Base name of the output files
+            } else if (args[i].equals("--listing") && i + 1 < args.length) {
+                options.listing = args[++i]; // Address, word, fields and source of every text word
+            } else if (args[i].equals("--metrics") && i + 1 < args.length) {
+                metricsFile = args[++i]; // JSON report of the run, - for stderr
+            } else {
+                inputFiles.add(args[i]);
+            }
+        }
+
+        boolean linking = inputFiles.size() > 1 || options.cacheDirectory != null;
+        if (inputFiles.isEmpty() || options.threads < 1 || options.cacheLimit < 0 || options.format == null
+                || linking && (options.streaming || options.incremental)
+                || options.optimize && (linking || options.streaming || options.incremental || options.threads > 1)) {
+            System.err.println("Usage: java Main [--stream | --incremental | --threads N | --optimize]"
+                    + " [--format hex|bin|obj] [--big-endian] [--output baseName] [--listing file] [--metrics file] input.asm");
+            System.err.println("       java Main [--threads N] [--cache dir [--cache-limit MB]] [--format hex|bin|obj]"
+                    + " [--big-endian] [--output baseName] [--listing file] [--metrics file] input.asm...");
             return;
         }
 
-        String inputFile = args[0];
-        String baseName = inputFile.substring(0, inputFile.lastIndexOf("."));
-        String textOutputFile = baseName + ".text"; // text Output File name
-        String dataOutputFile = baseName + ".data"; // data Output File name
+        // Output files are baseName.text and baseName.data, or baseName.obj for the container format.
+        // The base name defaults to the first input without its extension
+        String inputFile = inputFiles.get(0);
+        String baseName = outputName != null ? outputName : inputFile.substring(0, inputFile.lastIndexOf("."));
 
+        if (metricsFile != null) {
+            options.metrics = new Metrics();
+        }
         try {
-            // Read the input file
-            List<String> lines = Files.readAllLines(Paths.get(inputFile));
+            if (linking) {
+                processModules(inputFiles, baseName, options);
+            } else if (options.streaming) {
+                streamFile(inputFile, baseName, options);
+            } else {
+                // Read the input file
+                List<String> lines = Files.readAllLines(Paths.get(inputFile));
+                if (options.metrics != null) options.metrics.phase("read", lines.size(), -1);
 
-            // Process sections
-            processFile(lines, textOutputFile, dataOutputFile);
+                // Process sections
+                processFile(lines, baseName, options);
+            }
+            if (options.metrics != null) {
+                options.metrics.report(metricsFile);
+            }
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.err.println("Error reading file: " + e.getCause().getMessage());
+        } catch (IllegalArgumentException e) {
+            // Invalid source, NumberFormatException included
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+
+    }
+
+    // A count from the command line, -1 when it is not a number, so the usage check rejects it
+    private static int parseCount(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return -1;
         }
+    }
 
+    // A size in MB from the command line in bytes, -1 when it is not a number or out of range
+    private static long parseMegabytes(String text) {
+        try {
+            long megabytes = Long.parseLong(text);
+            return megabytes >= 0 && megabytes <= Long.MAX_VALUE >> 20 ? megabytes << 20 : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    private static void processFile(List<String> lines, String textOutputFile, String dataOutputFile) throws IOException {
+    private static void processFile(List<String> lines, String baseName, Options options) throws IOException {
         List<String> dataSection = new ArrayList<>();
+        List<Integer> dataLines = new ArrayList<>();
         List<String> textSection = new ArrayList<>();
+        splitSections(lines, dataSection, dataLines, textSection);
+        Metrics metrics = options.metrics;
+        if (metrics != null) metrics.phase("sections", lines.size(), -1);
+
+        // Process data section
+        Segment data = processDataSection(dataSection, dataLines);
+        if (metrics != null) metrics.phase("data", dataSection.size(), data.wordCount);
+
+        // Process text section (using data labels for references)
+        Segment text;
+        int[] lineSizes = null; // Words of each line when they are not the expandedSize
+        if (options.optimize) {
+            lineSizes = new int[textSection.size()];
+            text = processTextSectionOptimized(textSection, data.labels, lineSizes);
+            reportOptimization(textSection, lineSizes);
+        } else if (options.incremental) {
+            Path cacheFile = Paths.get(baseName + ".cache");
+            LineCache updated = new LineCache();
+            text = processTextSectionIncremental(textSection, data.labels, LineCache.load(cacheFile), updated);
+            updated.save(cacheFile);
+        } else if (options.threads > 1) {
+            text = processTextSectionParallel(textSection, data.labels, options.threads);
+        } else {
+            text = processTextSection(textSection, data.labels);
+        }
+        if (metrics != null) {
+            metrics.phase("text", textSection.size(), text.wordCount);
+            metrics.labels(text.labels.size(), data.labels.size());
+            countMnemonics(metrics, textSection, lineSizes);
+            metrics.phase("census", textSection.size(), -1);
+        }
+
+        // Write both sections in the requested format
+        SegmentWriter[] writers = SegmentWriter.open(baseName, options, text.wordCount, data.wordCount,
+                text.labels, data.labels);
+        try (SegmentWriter textWriter = writers[0]; SegmentWriter dataWriter = writers[1]) {
+            textWriter.write(text.words, 0, text.wordCount);
+            dataWriter.write(data.words, 0, data.wordCount);
+        }
+        if (metrics != null) metrics.phase("write", -1, text.wordCount + data.wordCount);
+
+        if (options.listing != null) {
+            try (ListingWriter listing = new ListingWriter(options.listing)) {
+                listText(listing, textSection, lineSizes, text.words, 0x00400000);
+            }
+            if (metrics != null) metrics.phase("listing", textSection.size(), text.wordCount);
+        }
+    }
+
+    // Lists a text section assembled into words at address. Every mode but --optimize encodes a
+    // line into expandedSize words, so the listing is made from the final words after all
+    // patching. lineSizes holds the size of each line for --optimize, and is null otherwise
+    private static void listText(ListingWriter listing, List<String> textSection, int[] lineSizes, int[] words,
+                                 int address) throws IOException {
+        Lexer line = new Lexer();
+        int wordIndex = 0;
+        for (int l = 0; l < textSection.size(); l++) {
+            String source = textSection.get(l);
+            if (line.tokenize(source).count() == 0) {
+                listing.label(address + 4 * wordIndex, source);
+                continue;
+            }
+            int size = lineSizes != null ? lineSizes[l] : Isa.mnemonic(line, 0) < 0 ? 1 : expandedSize(line);
+            if (size == 0) listing.label(address + 4 * wordIndex, source); // Optimized away
+            for (int i = 0; i < size; i++, wordIndex++) {
+                listing.word(address + 4 * wordIndex, words[wordIndex], i == 0 ? source : null);
+            }
+        }
+    }
+
+    // Counts the mnemonics of a text section for --metrics, after it has been assembled
+    private static void countMnemonics(Metrics metrics, List<String> textSection, int[] lineSizes) {
+        Lexer line = new Lexer();
+        for (int l = 0; l < textSection.size(); l++) {
+            if (line.tokenize(textSection.get(l)).count() == 0) continue;
+            int descriptor = Isa.mnemonic(line, 0);
+            metrics.count(line, descriptor, lineSizes != null ? lineSizes[l] : descriptor < 0 ? 1 : expandedSize(line));
+        }
+    }
+
+    // Prints what --optimize saved against the plain expansions, by mnemonic
+    private static void reportOptimization(List<String> textSection, int[] lineSizes) {
+        Lexer line = new Lexer();
+        Map<String, Integer> saved = new TreeMap<>();
+        int expandedWords = 0;
+        int words = 0;
+        int relaxed = 0;
+        for (int l = 0; l < textSection.size(); l++) {
+            if (line.tokenize(textSection.get(l)).count() == 0) continue;
+            int expanded = expandedSize(line);
+            expandedWords += expanded;
+            words += lineSizes[l];
+            if (lineSizes[l] < expanded) {
+                saved.merge(line.text(0), expanded - lineSizes[l], Integer::sum);
+            } else if (lineSizes[l] > expanded) {
+                relaxed++;
+            }
+        }
+        int savedWords = 0;
+        for (int count : saved.values()) {
+            savedWords += count;
+        }
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Optimized text: %d words from %d, %d saved", words, expandedWords, savedWords));
+        String separator = " (";
+        for (Map.Entry<String, Integer> entry : saved.entrySet()) {
+            report.append(separator).append(entry.getKey()).append(' ').append(entry.getValue());
+            separator = ", ";
+        }
+        if (!saved.isEmpty()) report.append(')');
+        if (relaxed > 0) {
+            report.append(String.format(", %d added by %d far %s", words - expandedWords + savedWords, relaxed,
+                    relaxed == 1 ? "branch" : "branches"));
+        }
+        System.out.println(report);
+    }
+
+    // Several input files, or any with --cache: each one is assembled on its own, in parallel,
+    // into a Relocatable module, or taken from the cache. The link stage then places the modules
+    // one after the other in both segments, in command line order, and patches their
+    // relocations. The output is the same as assembling the files concatenated into one,
+    // except that a label defined twice is an error
+    private static void processModules(List<String> inputFiles, String baseName, Options options)
+            throws IOException {
+        Relocatable[] modules = new Relocatable[inputFiles.size()];
+        ObjectCache cache = options.cacheDirectory == null ? null
+                : new ObjectCache(options.cacheDirectory, options.cacheLimit);
+        int threads = options.threads > 1 ? options.threads : Runtime.getRuntime().availableProcessors();
+        Metrics metrics = options.metrics;
+        invoke(threads, new ModuleTask(inputFiles, cache, metrics, modules, 0, modules.length));
+        if (metrics != null) {
+            long words = 0;
+            for (Relocatable module : modules) {
+                words += module.text.wordCount + module.data.wordCount;
+            }
+            metrics.phase("assemble", -1, words);
+        }
+        if (cache != null) {
+            cache.evict();
+            if (metrics != null) metrics.phase("evict", -1, -1);
+        }
 
+        // Layout - every module's labels move by the distance from the default origin to its place
+        Map<String, Integer> textLabels = new HashMap<>();
+        Map<String, Integer> dataLabels = new HashMap<>();
+        int[] textAddresses = new int[modules.length];
+        int textAddress = 0x00400000;
+        int dataAddress = 0x10010000;
+        for (int m = 0; m < modules.length; m++) {
+            Relocatable module = modules[m];
+            textAddresses[m] = textAddress;
+            addLabels(textLabels, module.text.labels, textAddress - 0x00400000, inputFiles.get(m));
+            addLabels(dataLabels, module.data.labels, dataAddress - 0x10010000, inputFiles.get(m));
+            textAddress += 4 * module.text.wordCount;
+            dataAddress += 4 * module.data.wordCount;
+        }
+        if (metrics != null) {
+            metrics.phase("layout", -1, (textAddress - 0x00400000 + dataAddress - 0x10010000) / 4);
+            metrics.labels(textLabels.size(), dataLabels.size());
+        }
+
+        // Link - patch every module in place, then write them in order
+        for (int m = 0; m < modules.length; m++) {
+            modules[m].relocations.link(textAddresses[m], modules[m].text.words, textLabels, dataLabels);
+        }
+        if (metrics != null) metrics.phase("link", -1, (textAddress - 0x00400000) / 4);
+        SegmentWriter[] writers = SegmentWriter.open(baseName, options, (textAddress - 0x00400000) / 4,
+                (dataAddress - 0x10010000) / 4, textLabels, dataLabels);
+        try (SegmentWriter textWriter = writers[0]; SegmentWriter dataWriter = writers[1]) {
+            for (Relocatable module : modules) {
+                textWriter.write(module.text.words, 0, module.text.wordCount);
+            }
+            for (Relocatable module : modules) {
+                dataWriter.write(module.data.words, 0, module.data.wordCount);
+            }
+        }
+        if (metrics != null) metrics.phase("write", -1, (textAddress - 0x00400000 + dataAddress - 0x10010000) / 4);
+
+        // The listing reads the sources again, modules from the cache have none
+        if (options.listing != null) {
+            try (ListingWriter listing = new ListingWriter(options.listing)) {
+                for (int m = 0; m < modules.length; m++) {
+                    List<String> dataSection = new ArrayList<>();
+                    List<String> textSection = new ArrayList<>();
+                    splitSections(Files.readAllLines(Paths.get(inputFiles.get(m))), dataSection, new ArrayList<>(),
+                            textSection);
+                    listText(listing, textSection, null, modules[m].text.words, textAddresses[m]);
+                }
+            }
+            if (metrics != null) metrics.phase("listing", -1, (textAddress - 0x00400000) / 4);
+        }
+    }
+
+    private static void addLabels(Map<String, Integer> labels, Map<String, Integer> moduleLabels, int distance,
+                                  String inputFile) {
+        for (Map.Entry<String, Integer> label : moduleLabels.entrySet()) {
+            if (labels.put(label.getKey(), label.getValue() + distance) != null) {
+                throw new IllegalArgumentException("Duplicate label: " + label.getKey() + " in " + inputFile);
+            }
+        }
+    }
+
+    // Assembles one input file into a relocatable module placed at the default origin.
+    // With metrics, its mnemonics are counted as part of the assemble phase
+    private static Relocatable assembleModule(String inputFile, ObjectCache cache, Metrics metrics)
+            throws IOException {
+        byte[] source = Files.readAllBytes(Paths.get(inputFile));
+        String key = cache == null ? null : ObjectCache.key(source);
+        Relocatable module = cache == null ? null : cache.get(key);
+        if (cache != null && metrics != null) metrics.cache(module != null);
+        if (module != null) return module;
+
+        List<String> dataSection = new ArrayList<>();
+        List<Integer> dataLines = new ArrayList<>();
+        List<String> textSection = new ArrayList<>();
+        splitSections(new String(source, StandardCharsets.UTF_8).lines().collect(Collectors.toList()),
+                dataSection, dataLines, textSection);
+        Segment data;
+        try {
+            data = processDataSection(dataSection, dataLines);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(inputFile + " " + e.getMessage());
+        }
+        Fixups relocations = new Fixups(0x00400000, true);
+        Segment text = processModuleTextSection(textSection, data.labels, relocations);
+        module = new Relocatable(text, data, relocations);
+        if (cache != null) {
+            cache.put(key, module);
+        }
+        if (metrics != null) {
+            countMnemonics(metrics, textSection, null);
+        }
+        return module;
+    }
+
+    // Sorts the lines of a file into its sections, without comments and blank lines.
+    // dataLines gets the line number in the file of each data line, for error messages
+    private static void splitSections(List<String> lines, List<String> dataSection, List<Integer> dataLines,
+                                      List<String> textSection) {
         boolean inDataSection = false;
         boolean inTextSection = false;
 
         // First pass - separate sections
-        for (String line : lines) {
-            line = line.split("#")[0].trim(); // Remove comments
+        for (int l = 0; l < lines.size(); l++) {
+            String line = stripComment(lines.get(l));
             if (line.isEmpty()) continue;
 
             if (line.equals(".data")) {
@@ -77,263 +374,766 @@ public class Main {
 
             if (inDataSection) {
                 dataSection.add(line);
+                dataLines.add(l + 1);
             } else if (inTextSection) {
                 textSection.add(line);
             }
         }
+    }
+
+    private static Segment processDataSection(List<String> dataSection, List<Integer> dataLines) {
+        DataSection data = new DataSection(0x10010000); // Data section starts at this address
+        for (int i = 0; i < dataSection.size(); i++) {
+            data.add(dataSection.get(i), dataLines.get(i));
+        }
+        return data.segment();
+    }
 
-        // Process data section
-        Map<String, Integer> dataLabels = processDataSection(dataSection, dataOutputFile);
+    // Single pass: each line is expanded and encoded as soon as it is read. References to
+    // labels that are not defined yet are left to Fixups and patched when the label appears
+    private static Segment processTextSection(List<String> textSection, Map<String, Integer> dataLabels) {
+        Map<String, Integer> textLabels = new HashMap<>();
+        Fixups fixups = new Fixups(0x00400000);
+        int[] words = new int[Math.max(16, textSection.size())];
+        int wordCount = 0;
+        Lexer line = new Lexer();
 
-        // Process text section (using data labels for references)
-        processTextSection(textSection, textOutputFile, dataLabels);
+        for (String source : textSection) {
+            line.tokenize(source);
+
+            // Handle label, with or without an instruction after it
+            if (line.hasLabel()) {
+                String label = line.label();
+                int address = 0x00400000 + 4 * wordCount; // Text section starts at 0x00400000
+                textLabels.put(label, address);
+                fixups.define(label, address, words);
+            }
+            if (line.count() == 0) continue;
+
+            if (wordCount + 2 > words.length) words = Arrays.copyOf(words, words.length * 2);
+            wordCount += assembleLine(line, 0x00400000 + 4 * wordCount, words, wordCount, textLabels, dataLabels,
+                    fixups);
+        }
+        fixups.checkResolved();
+
+        return new Segment(words, wordCount, textLabels);
     }
 
-    private static Map<String, Integer> processDataSection(List<String> dataSection, String outputFile) throws IOException {
-        Map<String, Integer> labels = new HashMap<>();
-        List<String> hexOutputs = new ArrayList<>();
-        int currentAddress = 0x10010000; // Data section starts at this address
+    // Two passes for --threads: once the first pass has fixed every address,
+    // chunks of the source lines are encoded independently
+    private static Segment processTextSectionParallel(List<String> textSection, Map<String, Integer> dataLabels,
+                                                      int threads) {
+        Map<String, Integer> textLabels = new HashMap<>();
+        String[] instructions = new String[textSection.size()];
+        int[] offsets = new int[textSection.size() + 1]; // Index of the first word of each line
+        int lineCount = 0;
+        int wordCount = 0;
+        Lexer line = new Lexer();
 
-        for (String line : dataSection) {
-            if (line.isEmpty()) continue;
+        // First pass - identify labels and size pseudo-instructions
+        for (String source : textSection) {
+            line.tokenize(source);
+            if (line.hasLabel()) {
+                textLabels.put(line.label(), 0x00400000 + 4 * wordCount); // Text section starts at 0x00400000
+            }
+            if (line.count() == 0) continue;
 
-            if (line.contains(":")) {
-                String[] parts = line.split(":", 2);
-                String label = parts[0].trim();
-                String dataDeclaration = parts.length > 1 ? parts[1].trim() : "";
-
-                // Record label address
-                labels.put(label, currentAddress);
-
-                if (!dataDeclaration.isEmpty()) {
-                    // Process the data declaration
-                    if (dataDeclaration.startsWith(".asciiz")) {
-                        // Extract the string between quotes
-                        String str = dataDeclaration.substring(dataDeclaration.indexOf("\"") + 1,
-                                dataDeclaration.lastIndexOf("\""));
-
-                        // Convert string to bytes and add null terminator
-                        byte[] bytes = (str + "\0").getBytes();
-
-                        // Process bytes in little-endian format, 4 bytes at a time
-                        for (int i = 0; i < bytes.length; i += 4) {
-                            int word = 0;
-                            for (int j = 0; j < 4 && i + j < bytes.length; j++) {
-                                word |= ((bytes[i + j] & 0xFF) << (j * 8));
-                            }
-                            hexOutputs.add(String.format("%08x", word));
-                            currentAddress += 4;
-                        }
-                    }
-                }
+            instructions[lineCount] = source;
+            offsets[lineCount] = wordCount;
+            lineCount++;
+            wordCount += expandedSize(line);
+        }
+        offsets[lineCount] = wordCount;
+
+        // Second pass - assemble chunks of lines in parallel
+        int[] words = new int[wordCount];
+        invoke(threads, new EncodeTask(instructions, offsets, words, 0, lineCount, textLabels, dataLabels));
+
+        return new Segment(words, words.length, textLabels);
+    }
+
+    // Runs task on a pool of its own. An exception thrown on a worker thread is rethrown by the
+    // pool as a copy wrapping it, which is unwrapped so an error reads as it does single-threaded
+    private static void invoke(int threads, RecursiveAction task) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(task);
+        } catch (RuntimeException e) {
+            // The pool rethrows a task's exception wrapped in a copy of itself, once per join on the way up
+            RuntimeException thrown = e;
+            while (thrown.getCause() != null && thrown.getCause().getClass() == thrown.getClass()) {
+                thrown = (RuntimeException) thrown.getCause();
             }
+            throw thrown;
+        } finally {
+            pool.shutdown();
         }
+    }
+
+    // Two passes over the text of one module. With every label of the module known, branches
+    // inside it are encoded right away, their offsets do not change when the module moves.
+    // Jumps, la and branches to other modules are recorded in the relocatable Fixups
+    private static Segment processModuleTextSection(List<String> textSection, Map<String, Integer> dataLabels,
+                                                    Fixups relocations) {
+        Map<String, Integer> textLabels = new HashMap<>();
+        int wordCount = 0;
+        Lexer line = new Lexer();
 
-        // Write data section output
-        Files.write(Paths.get(outputFile), hexOutputs);
+        // First pass - identify labels and size pseudo-instructions
+        for (String source : textSection) {
+            line.tokenize(source);
+            if (line.hasLabel()) {
+                textLabels.put(line.label(), 0x00400000 + 4 * wordCount);
+            }
+            if (line.count() > 0) {
+                wordCount += expandedSize(line);
+            }
+        }
 
-        return labels;
+        // Second pass - encode, the relocations are left for the link stage
+        int[] words = new int[wordCount];
+        wordCount = 0;
+        for (String source : textSection) {
+            if (line.tokenize(source).count() == 0) continue;
+            wordCount += assembleLine(line, 0x00400000 + 4 * wordCount, words, wordCount, textLabels, dataLabels,
+                    relocations);
+        }
+
+        return new Segment(words, wordCount, textLabels);
     }
 
-    private static void processTextSection(List<String> textSection, String outputFile,
-                                           Map<String, Integer> dataLabels) throws IOException {
+    // Two passes like processTextSectionParallel, but lines found in the cache are neither expanded
+    // nor encoded. Their size comes from the cached words, which are copied if the line does
+    // not reference a label or if neither the line nor its label has moved. Every line of
+    // this run is added to the updated cache
+    private static Segment processTextSectionIncremental(List<String> textSection, Map<String, Integer> dataLabels,
+                                                         LineCache cache, LineCache updated) {
         Map<String, Integer> textLabels = new HashMap<>();
-        List<String> expandedInstructions = new ArrayList<>();
-        List<String> hexOutputs = new ArrayList<>();
+        int lineCount = 0;
+        String[] instructions = new String[textSection.size()];
+        long[] hashes = new long[textSection.size()];
+        LineCache.Entry[] cached = new LineCache.Entry[textSection.size()];
         int currentAddress = 0x00400000; // Text section starts at this address
+        Lexer line = new Lexer();
 
-        // First pass - identify labels and expand pseudo-instructions
-        for (String line : textSection) {
-            if (line.isEmpty()) continue;
+        // First pass - identify labels, sizes come from the cache where possible
+        for (String source : textSection) {
+            line.tokenize(source);
+            if (line.hasLabel()) {
+                textLabels.put(line.label(), currentAddress);
+            }
+            if (line.count() == 0) continue;
 
-            // Handle label-only line
-            if (line.endsWith(":")) {
-                String label = line.substring(0, line.indexOf(":")).trim();
-                textLabels.put(label, currentAddress);
-                continue;
+            long hash = LineCache.hash(source, line.start(0), line.instructionEnd());
+            LineCache.Entry entry = cache.get(hash, currentAddress);
+            instructions[lineCount] = source;
+            hashes[lineCount] = hash;
+            cached[lineCount] = entry;
+            lineCount++;
+            currentAddress += (entry != null ? entry.words.length : expandedSize(line)) * 4;
+        }
+
+        // Second pass - copy valid cached words, encode everything else
+        int[] words = new int[(currentAddress - 0x00400000) / 4];
+        int wordCount = 0;
+        currentAddress = 0x00400000;
+        for (int i = 0; i < lineCount; i++) {
+            LineCache.Entry entry = cached[i];
+            if (entry == null || !entry.isValidAt(currentAddress, textLabels, dataLabels)) {
+                line.tokenize(instructions[i]);
+                int operand = labelOperand(line);
+                // An undefined label is recorded too, the line changes once it is defined
+                String label = operand < 0 || !line.isLabel(operand) ? null : line.text(operand);
+                int layout = Isa.layout(Isa.mnemonic(line, 0));
+                boolean data = layout == Isa.LOAD_ADDRESS; // la encodes data labels, the rest text labels
+                Integer target = label == null ? null : (data ? dataLabels : textLabels).get(label);
+                int labelAddress = target == null ? LineCache.UNRESOLVED : target;
+                boolean relative = label != null && layout != Isa.TARGET && !data;
+                int[] lineWords = new int[2];
+                int size = assembleLine(line, currentAddress, lineWords, 0, textLabels, dataLabels, null);
+                entry = new LineCache.Entry(hashes[i], Arrays.copyOf(lineWords, size), label, relative, data,
+                        currentAddress, labelAddress);
             }
+            updated.put(entry);
+            System.arraycopy(entry.words, 0, words, wordCount, entry.words.length);
+            wordCount += entry.words.length;
+            currentAddress += entry.words.length * 4;
+        }
 
-            // Handle line with label and instruction
-            if (line.contains(":")) {
-                String[] parts = line.split(":", 2);
-                String label = parts[0].trim();
-                String instruction = parts[1].trim();
+        return new Segment(words, wordCount, textLabels);
+    }
 
-                textLabels.put(label, currentAddress);
+    // --optimize: two passes like processModuleTextSection, but every line gets the shortest
+    // encoding for its operands (optimizedSize), and a beq, bne or blt whose label is beyond
+    // a 16-bit offset is relaxed into the opposite branch over a j. Relaxing a branch moves
+    // every label after it, so the layout is repeated until no more branches grow; sizes only
+    // grow there, so that ends, and every offset is then exact. lineSizes gets the words of
+    // each line, 0 for a line without an instruction or one that was optimized away
+    private static Segment processTextSectionOptimized(List<String> textSection, Map<String, Integer> dataLabels,
+                                                       int[] lineSizes) {
+        int lineCount = textSection.size();
+        String[] labels = new String[lineCount];
+        String[] branchTargets = new String[lineCount]; // Label of each beq, bne and blt to a label
+        boolean[] far = new boolean[lineCount];
+        Lexer line = new Lexer();
+
+        // First pass - labels, and the shortest size of every line
+        for (int i = 0; i < lineCount; i++) {
+            line.tokenize(textSection.get(i));
+            if (line.hasLabel()) labels[i] = line.label();
+            if (line.count() == 0) continue;
+            lineSizes[i] = optimizedSize(line, dataLabels);
+            int descriptor = Isa.mnemonic(line, 0);
+            int layout = descriptor < 0 ? -1 : Isa.layout(descriptor);
+            if ((layout == Isa.BRANCH || layout == Isa.BRANCH_LESS_THAN) && line.isLabel(3)) {
+                branchTargets[i] = line.text(3);
+            }
+        }
 
-                if (!instruction.isEmpty()) {
-                    List<String> expanded = expandPseudoInstructions(instruction);
-                    expandedInstructions.addAll(expanded);
-                    currentAddress += expanded.size() * 4;
+        // Relaxation - lay the labels out, grow the branches that do not reach, until none do
+        Map<String, Integer> textLabels = new HashMap<>();
+        int wordCount;
+        boolean grown;
+        do {
+            wordCount = 0;
+            for (int i = 0; i < lineCount; i++) {
+                if (labels[i] != null) textLabels.put(labels[i], 0x00400000 + 4 * wordCount);
+                wordCount += lineSizes[i];
+            }
+            grown = false;
+            int address = 0x00400000;
+            for (int i = 0; i < lineCount; i++) {
+                if (branchTargets[i] != null && !far[i]) {
+                    Integer target = textLabels.get(branchTargets[i]);
+                    if (target == null) throw new IllegalArgumentException("Undefined label: " + branchTargets[i]);
+                    int branchAddress = address + 4 * (lineSizes[i] - 1); // After the slt of blt
+                    int offset = (target - (branchAddress + 4)) >> 2;
+                    if (offset < -32768 || offset > 32767) {
+                        far[i] = true;
+                        lineSizes[i]++;
+                        grown = true;
+                    }
                 }
-            } else {
-                // Normal instruction
-                List<String> expanded = expandPseudoInstructions(line);
-                expandedInstructions.addAll(expanded);
-                currentAddress += expanded.size() * 4;
+                address += 4 * lineSizes[i];
             }
+        } while (grown);
+
+        // Second pass - encode with every label known
+        int[] words = new int[wordCount];
+        wordCount = 0;
+        for (int i = 0; i < lineCount; i++) {
+            if (lineSizes[i] == 0) continue;
+            line.tokenize(textSection.get(i));
+            wordCount += assembleOptimized(line, 0x00400000 + 4 * wordCount, words, wordCount, textLabels,
+                    dataLabels, far[i]);
         }
 
-        // Reset address for second pass
-        currentAddress = 0x00400000;
+        return new Segment(words, wordCount, textLabels);
+    }
+
+    // Token holding the label a line's encoding may depend on: the target of j, beq, bne and
+    // blt, or the data label loaded by la. -1 for every other instruction
+    private static int labelOperand(Lexer line) {
+        int descriptor = Isa.mnemonic(line, 0);
+        switch (descriptor < 0 ? -1 : Isa.layout(descriptor)) {
+            case Isa.TARGET:
+                return 1;
+            case Isa.LOAD_ADDRESS:
+                return 2;
+            case Isa.BRANCH:
+            case Isa.BRANCH_LESS_THAN:
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    // Streaming mode: the first pass only records text label addresses, the second pass
+    // re-reads the source and writes each word as soon as it is encoded, so memory use
+    // depends on the number of labels rather than the length of the program. The data
+    // section is packed in the first pass, its bytes are all the data output anyway
+    private static void streamFile(String inputFile, String baseName, Options options) throws IOException {
+        DataSection data = new DataSection(0x10010000);
+        Map<String, Integer> dataLabels = data.labels();
+        Map<String, Integer> textLabels = new HashMap<>();
+        int textAddress = 0x00400000;
+        Lexer instruction = new Lexer();
+        Metrics metrics = options.metrics;
+        long lines = 0;
+
+        // First pass - label addresses only, and the mnemonic counts for metrics
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(inputFile))) {
+            boolean inDataSection = false;
+            boolean inTextSection = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                line = stripComment(line);
+                if (line.isEmpty()) continue;
+
+                if (line.equals(".data")) {
+                    inDataSection = true;
+                    inTextSection = false;
+                } else if (line.equals(".text")) {
+                    inDataSection = false;
+                    inTextSection = true;
+                } else if (inDataSection) {
+                    data.add(line, (int) lines);
+                } else if (inTextSection) {
+                    instruction.tokenize(line);
+                    if (instruction.hasLabel()) {
+                        textLabels.put(instruction.label(), textAddress);
+                    }
+                    if (instruction.count() > 0) {
+                        int size = expandedSize(instruction);
+                        if (metrics != null) metrics.count(instruction, Isa.mnemonic(instruction, 0), size);
+                        textAddress += size * 4;
+                    }
+                }
+            }
+        }
+        Segment dataWords = data.segment();
+        int words = (textAddress - 0x00400000) / 4 + dataWords.wordCount;
+        if (metrics != null) {
+            metrics.phase("first pass", lines, words);
+            metrics.labels(textLabels.size(), dataLabels.size());
+        }
 
-        // Second pass - assemble instructions with correct addresses
-        for (String instruction : expandedInstructions) {
-            String machineCode = assembleWithLabels(instruction, currentAddress, textLabels, dataLabels);
-            hexOutputs.add(machineCode);
-            currentAddress += 4;
+        // Second pass - encode and write straight to the output files
+        SegmentWriter[] writers = SegmentWriter.open(baseName, options, (textAddress - 0x00400000) / 4,
+                dataWords.wordCount, textLabels, dataLabels);
+        textAddress = 0x00400000;
+        int[] lineWords = new int[2];
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(inputFile));
+             SegmentWriter textWriter = writers[0]; SegmentWriter dataWriter = writers[1];
+             ListingWriter listing = options.listing == null ? null : new ListingWriter(options.listing)) {
+            boolean inDataSection = false;
+            boolean inTextSection = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = stripComment(line);
+                if (line.isEmpty()) continue;
+
+                if (line.equals(".data")) {
+                    inDataSection = true;
+                    inTextSection = false;
+                } else if (line.equals(".text")) {
+                    inDataSection = false;
+                    inTextSection = true;
+                } else if (inTextSection) {
+                    if (instruction.tokenize(line).count() == 0) {
+                        if (listing != null) listing.label(textAddress, line);
+                        continue;
+                    }
+                    int size = assembleLine(instruction, textAddress, lineWords, 0, textLabels, dataLabels, null);
+                    for (int i = 0; i < size; i++) {
+                        textWriter.write(lineWords[i]);
+                        if (listing != null) listing.word(textAddress + 4 * i, lineWords[i], i == 0 ? line : null);
+                    }
+                    textAddress += size * 4;
+                }
+            }
+            dataWriter.write(dataWords.words, 0, dataWords.wordCount);
         }
+        if (metrics != null) metrics.phase("second pass", lines, words);
+    }
 
-        // Write text section output
-        Files.write(Paths.get(outputFile), hexOutputs);
+    // The comment starts at the first '#' outside a string literal, so a '#' in a string is part
+    // of it and a quote in the comment is not
+    private static String stripComment(String line) {
+        boolean inString = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                inString = !inString;
+            } else if (c == '#' && !inString) {
+                return line.substring(0, i).trim();
+            }
+        }
+        return line.trim();
     }
 
-    private static List<String> expandPseudoInstructions(String instruction) {
-        List<String> result = new ArrayList<>();
-        String[] parts = instruction.replaceAll("[,()]", " ").split("\\s+");
-        String mnemonic = parts[0];
+    // Number of words assembleLine produces for a line, without encoding it
+    private static int expandedSize(Lexer line) {
+        switch (Isa.mnemonic(line, 0)) {
+            case Isa.LI:
+                int imm = line.parseInt(2);
+                return imm >= -32768 && imm <= 32767 ? 1 : 2;
+            case Isa.LA:
+            case Isa.BLT:
+                return 2;
+            default:
+                return 1;
+        }
+    }
 
-        switch (mnemonic) {
-            case "li":
-                // li $t0, imm -> addiu $t0, $zero, imm (for small values)
-                // For large values: lui + ori
-                int imm = Integer.decode(parts[2]);
-                if (imm >= -32768 && imm <= 32767) {
-                    result.add("addiu " + parts[1] + ", $zero, " + imm);
+    // Words of the shortest encoding --optimize finds for a line, branches still taken as near:
+    //   li rd, imm     addiu rd, $zero, imm  or  ori rd, $zero, imm  or  lui rd, upper
+    //   la rd, label   ori rd, $zero, address  or  lui rd, upper
+    //   move rd, rd    nothing, the same for a move to $zero
+    // and the plain expansion when none of these fits
+    private static int optimizedSize(Lexer line, Map<String, Integer> dataLabels) {
+        switch (Isa.mnemonic(line, 0)) {
+            case Isa.LI:
+                int imm = line.parseInt(2);
+                return imm >= -32768 && imm <= 32767 || fitsOneWord(imm) ? 1 : 2;
+            case Isa.LA:
+                return fitsOneWord(dataAddress(line, dataLabels)) ? 1 : 2;
+            case Isa.MOVE:
+                int rd = register(line, 1);
+                return rd == 0 || rd == register(line, 2) ? 0 : 1;
+            default:
+                return expandedSize(line);
+        }
+    }
+
+    // Whether a single ori from $zero or a single lui loads value
+    private static boolean fitsOneWord(int value) {
+        return (value & 0xFFFF0000) == 0 || (value & 0xFFFF) == 0;
+    }
+
+    // Address la loads: a data label, anything else loads 0
+    private static int dataAddress(Lexer line, Map<String, Integer> dataLabels) {
+        Integer address = dataLabels.get(line.text(2));
+        return address == null ? 0 : address;
+    }
+
+    // Encodes one line into the optimizedSize words, or one more for a far branch:
+    //   beq rs, rt, label -> bne rs, rt, 1 + j label   (and bne the other way around)
+    //   blt rs, rt, label -> slt $at, rs, rt + beq $at, $zero, 1 + j label
+    private static int assembleOptimized(Lexer line, int currentAddress, int[] out, int index,
+                                         Map<String, Integer> textLabels, Map<String, Integer> dataLabels,
+                                         boolean far) {
+        int descriptor = Isa.mnemonic(line, 0);
+        switch (descriptor) {
+            case Isa.LI:
+            case Isa.LA:
+                int value = descriptor == Isa.LI ? line.parseInt(2) : dataAddress(line, dataLabels);
+                boolean small = descriptor == Isa.LI && value >= -32768 && value <= 32767;
+                if (small || !fitsOneWord(value)) break; // addiu, or lui $at + ori as usual
+                if ((value & 0xFFFF0000) == 0) {
+                    out[index] = generalIType(Isa.ORI, register(line, 1), 0, value);
                 } else {
-                    int upper = (imm >> 16) & 0xFFFF;
-                    int lower = imm & 0xFFFF;
-                    result.add("lui $at, " + upper);
-                    result.add("ori " + parts[1] + ", $at, " + lower);
+                    out[index] = iType(Isa.opcode(Isa.LUI), 0, register(line, 1), value >>> 16);
                 }
+                return 1;
+
+            case Isa.MOVE:
+                int rd = register(line, 1);
+                if (rd == 0 || rd == register(line, 2)) return 0;
                 break;
 
-            case "la":
-                // la $t0, label -> lui $at + ori
-                // (will need to be resolved in second pass)
-                result.add("lui $at, UPPER_" + parts[2]);
-                result.add("ori " + parts[1] + ", $at, LOWER_" + parts[2]);
+            case Isa.BEQ:
+            case Isa.BNE:
+            case Isa.BLT:
+                if (!far) break;
+                int target = textLabels.get(line.text(3));
+                int size = 0;
+                int inverse = descriptor == Isa.BEQ ? Isa.BNE : Isa.BEQ;
+                int rs = register(line, 1);
+                int rt = register(line, 2);
+                if (descriptor == Isa.BLT) {
+                    out[index + size++] = rType(rs, rt, 1, Isa.funct(Isa.SLT));
+                    rs = 1;
+                    rt = 0;
+                }
+                out[index + size++] = iType(Isa.opcode(inverse), rs, rt, 1); // Over the j
+                out[index + size++] = jType(Isa.opcode(Isa.J), target >> 2);
+                return size;
+
+            default:
                 break;
+        }
+        return assembleLine(line, currentAddress, out, index, textLabels, dataLabels, null);
+    }
 
-            case "blt":
+    // Encodes one tokenized line into out[index], expanding pseudo-instructions in place, and
+    // returns the number of words written. out must have room for all of them.
+    // With fixups, a j/beq/bne target that is not a known label yet is recorded as a forward
+    // reference and encoded with a zero target field. Relocatable fixups also get every j and la
+    private static int assembleLine(Lexer line, int currentAddress, int[] out, int index,
+                                    Map<String, Integer> textLabels, Map<String, Integer> dataLabels,
+                                    Fixups fixups) {
+        int descriptor = Isa.mnemonic(line, 0);
+        switch (descriptor) {
+            case Isa.LI:
+                // li $t0, imm -> addiu $t0, $zero, imm (for small values)
+                // For large values: lui $at, upper + ori $t0, $at, lower
+                int imm = line.parseInt(2);
+                if (imm >= -32768 && imm <= 32767) {
+                    out[index] = generalIType(Isa.ADDIU, register(line, 1), 0, imm);
+                    return 1;
+                }
+                out[index] = iType(Isa.opcode(Isa.LUI), 0, 1, (imm >> 16) & 0xFFFF);
+                out[index + 1] = generalIType(Isa.ORI, register(line, 1), 1, imm & 0xFFFF);
+                return 2;
+
+            case Isa.LA:
+                // la $t0, label -> lui $at, upper + ori $t0, $at, lower
+                // Only data labels are resolved, anything else loads 0
+                Integer address = dataLabels.get(line.text(2));
+                if (fixups != null && fixups.isRelocatable()) {
+                    fixups.add(line.text(2), Fixups.UPPER, index);
+                    fixups.add(line.text(2), Fixups.LOWER, index + 1);
+                    address = null;
+                }
+                int value = address == null ? 0 : address;
+                out[index] = iType(Isa.opcode(Isa.LUI), 0, 1, (value >> 16) & 0xFFFF);
+                out[index + 1] = generalIType(Isa.ORI, register(line, 1), 1, value & 0xFFFF);
+                return 2;
+
+            case Isa.BLT:
                 // blt $t0, $t1, label -> slt $at, $t0, $t1 + bne $at, $zero, label
-                result.add("slt $at, " + parts[1] + ", " + parts[2]);
-                result.add("bne $at, $zero, " + parts[3]);
-                break;
+                out[index] = rType(register(line, 1), register(line, 2), 1, Isa.funct(Isa.SLT));
+                out[index + 1] = branch(Isa.BNE, 1, 0, line, currentAddress + 4, textLabels, fixups, index + 1);
+                return 2;
 
-            case "move":
+            case Isa.MOVE:
                 // move $t0, $t1 -> add $t0, $zero, $t1
-                result.add("add " + parts[1] + ", $zero, " + parts[2]);
-                break;
+                out[index] = rType(0, register(line, 2), register(line, 1), Isa.funct(Isa.ADD));
+                return 1;
 
             default:
-                result.add(instruction);
-                break;
+                out[index] = assemble(descriptor, line, currentAddress, textLabels, fixups, index);
+                return 1;
         }
-
-        return result;
     }
 
-    private static String assembleWithLabels(String instruction, int currentAddress,
-                                             Map<String, Integer> textLabels,
-                                             Map<String, Integer> dataLabels) {
-        String[] parts = instruction.replaceAll("[,()]", " ").split("\\s+");
-        String mnemonic = parts[0];
-        String opcode = OPCODES.get(mnemonic);
+    // A single machine instruction, dispatched on the operand layout of its descriptor
+    private static int assemble(int descriptor, Lexer line, int currentAddress, Map<String, Integer> textLabels,
+                                Fixups fixups, int wordIndex) {
+        if (descriptor < 0) return 0; // Invalid instruction
+        int opcode = Isa.opcode(descriptor);
 
-        if (opcode == null) return "00000000"; // Invalid instruction
-
-        // Handle label references in branch/jump instructions
-        if (mnemonic.equals("j")) {
-            if (textLabels.containsKey(parts[1])) {
-                int targetAddress = textLabels.get(parts[1]);
-                // For J instructions, need the word address
-                int wordAddress = targetAddress >> 2;
-                return binaryToHex(opcode + String.format("%26s",
-                        Integer.toBinaryString(wordAddress)).replace(' ', '0'));
+        switch (Isa.layout(descriptor)) {
+            case Isa.THREE_REGISTERS: { // R-type
+                int rd = register(line, 1);
+                int rs = register(line, 2);
+                int rt = register(line, 3);
+                return rType(rs, rt, rd, Isa.funct(descriptor));
+            }
+            case Isa.NO_OPERANDS: // syscall
+                return Isa.funct(descriptor);
+            case Isa.TARGET: // J-type, to a label or a hex word index
+                if (line.isLabel(1)) {
+                    String label = line.text(1);
+                    Integer targetAddress = textLabels.get(label);
+                    if (targetAddress != null && (fixups == null || !fixups.isRelocatable())) {
+                        // For J instructions, need the word address
+                        return jType(opcode, targetAddress >> 2);
+                    }
+                    if (fixups == null) throw undefinedLabel(label);
+                    fixups.add(label, Fixups.JUMP, wordIndex);
+                    return jType(opcode, 0);
+                }
+                return jType(opcode, line.parseHex(1));
+            case Isa.BRANCH:
+                return branch(descriptor, register(line, 1), register(line, 2), line, currentAddress, textLabels,
+                        fixups, wordIndex);
+            case Isa.UPPER_IMMEDIATE: { // lui has only rt, rs is always $zero
+                int rt = register(line, 1);
+                int immediate = line.parseInt(2); // Immediate value
+                return iType(opcode, 0, rt, immediate);
+            }
+            case Isa.LOAD_STORE: {
+                int rt = register(line, 1); // Destination register
+                int rs = register(line, 3); // Base register (inside parentheses)
+                int immediate = line.parseInt(2); // Offset
+                return iType(opcode, rs, rt, immediate);
             }
-        } else if (mnemonic.equals("beq") || mnemonic.equals("bne")) {
-            String rs = REGISTER_MAP.get(parts[1]);
-            String rt = REGISTER_MAP.get(parts[2]);
+            default: // General I-type instructions
+                return generalIType(descriptor, register(line, 1), register(line, 2), line.parseInt(3));
+        }
+    }
 
-            if (textLabels.containsKey(parts[3])) {
-                int targetAddress = textLabels.get(parts[3]);
+    // beq/bne whose target is token 3 of the line. A numeric target is taken as the offset itself
+    private static int branch(int descriptor, int rs, int rt, Lexer line, int currentAddress,
+                              Map<String, Integer> textLabels, Fixups fixups, int wordIndex) {
+        if (line.isLabel(3)) {
+            String label = line.text(3);
+            Integer targetAddress = textLabels.get(label);
+            if (targetAddress != null) {
                 // Calculate branch offset (in words)
                 int offset = (targetAddress - (currentAddress + 4)) >> 2;
+                return iType(Isa.opcode(descriptor), rs, rt, offset);
+            }
+            if (fixups == null) throw undefinedLabel(label);
+            fixups.add(label, Fixups.BRANCH, wordIndex);
+            return iType(Isa.opcode(descriptor), rs, rt, 0);
+        }
+        return generalIType(descriptor, rs, rt, line.parseInt(3));
+    }
 
-                String immediateBinary = String.format("%16s",
-                        Integer.toBinaryString(offset & 0xFFFF)).replace(' ', '0');
+    // Without fixups every text label is known before a line is encoded, so a label that is not
+    // there is undefined, the same error Fixups.checkResolved gives the single-pass assembler
+    private static IllegalArgumentException undefinedLabel(String label) {
+        return new IllegalArgumentException("Undefined label: " + label);
+    }
 
-                return binaryToHex(opcode + rs + rt + immediateBinary);
-            }
-        } else if (instruction.contains("UPPER_") || instruction.contains("LOWER_")) {
-            // Handle la pseudo-instruction placeholder
-            String targetLabel = "";
-            int value = 0;
+    // first and second are the register operands in source order: rt, rs for addiu, andi and
+    // ori, and rs, rt for a branch with a numeric offset
+    private static int generalIType(int descriptor, int first, int second, int immediate) {
+        boolean swapped = Isa.layout(descriptor) == Isa.IMMEDIATE;
+        int rs = swapped ? second : first;
+        int rt = swapped ? first : second;
 
-            if (mnemonic.equals("lui") && parts[2].startsWith("UPPER_")) {
-                targetLabel = parts[2].substring(6);
-                if (dataLabels.containsKey(targetLabel)) {
-                    value = (dataLabels.get(targetLabel) >> 16) & 0xFFFF;
-                }
-            } else if (mnemonic.equals("ori") && parts[3].startsWith("LOWER_")) {
-                targetLabel = parts[3].substring(6);
-                if (dataLabels.containsKey(targetLabel)) {
-                    value = dataLabels.get(targetLabel) & 0xFFFF;
-                }
-            }
+        // Immediate is truncated to 16 bits, which also sign extends negative values
+        return iType(Isa.opcode(descriptor), rs, rt, immediate);
+    }
 
-            // Process as normal with resolved value
-            parts[parts.length - 1] = String.valueOf(value);
+    private static int register(Lexer line, int token) {
+        int number = Isa.register(line, token);
+        if (number < 0) {
+            throw new IllegalArgumentException("Unknown register: " + line.text(token));
         }
+        return number;
+    }
 
+    // Field packing for the three instruction formats
+    private static int rType(int rs, int rt, int rd, int funct) {
+        return (rs << 21) | (rt << 16) | (rd << 11) | funct; // opcode and shmt are always zero
+    }
 
-        if (FUNCT_CODES.containsKey(mnemonic)) { // R-type
-            if (mnemonic.equals("syscall")) {
-                return "0000000c";
-            }
-            String rd = REGISTER_MAP.get(parts[1]);
-            String rs = REGISTER_MAP.get(parts[2]);
-            String rt = REGISTER_MAP.get(parts[3]);
-            return binaryToHex(opcode + rs + rt + rd + "00000" + FUNCT_CODES.get(mnemonic));
-        } else if (mnemonic.equals("j")) { // J-type
-            int address = Integer.parseInt(parts[1].replace("0x", ""), 16);
-            return binaryToHex(opcode + String.format("%26s", Integer.toBinaryString(address)).replace(' ', '0'));
-        } else if (mnemonic.equals("lui")) { // Special case for lui I type
-            String rt = REGISTER_MAP.get(parts[1]); // lui has only rt
-            String rs = "00000"; // rs is always $zero (00000) for lui
-            int immediate = Integer.decode(parts[2]); // Immediate value
-            return binaryToHex(opcode + rs + rt + String.format("%16s", Integer.toBinaryString(immediate & 0xFFFF)).replace(' ', '0'));
-        } else if (mnemonic.equals("lw") || mnemonic.equals("sw")) { // Load/store instructions
-            String rt = REGISTER_MAP.get(parts[1]); // Destination register
-            String rs = REGISTER_MAP.get(parts[3]); // Base register (inside parentheses)
-            int immediate = Integer.decode(parts[2]); // Offset
-            return binaryToHex(opcode + rs + rt + String.format("%16s", Integer.toBinaryString(immediate & 0xFFFF)).replace(' ', '0'));
-        } else { // General I-type instructions, including beq
-            String rs = REGISTER_MAP.get(parts[1]); // Corrected order for I-type
-            String rt = REGISTER_MAP.get(parts[2]);
-            int immediate = Integer.decode(parts[3]);
+    private static int iType(int opcode, int rs, int rt, int immediate) {
+        return (opcode << 26) | (rs << 21) | (rt << 16) | (immediate & 0xFFFF);
+    }
 
-            if (mnemonic.equals("ori")) {
-                String temp = rs;
-                rs = rt;
-                rt = temp;
-            }
+    private static int jType(int opcode, int index) {
+        return (opcode << 26) | (index & 0x03FFFFFF);
+    }
 
-            // Ensure immediate is 16-bit signed
-            String immediateBinary = String.format("%16s", Integer.toBinaryString(immediate)).replace(' ', '0');
+    // Command line settings shared by the assembly passes
+    static class Options {
+        boolean streaming;
+        boolean incremental;
+        boolean optimize;
+        int threads = 1;
+        Path cacheDirectory;
+        long cacheLimit = 256L << 20;
+        Metrics metrics; // Null unless --metrics is given
+        String listing;
+        OutputFormat format = OutputFormat.HEX;
+        ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+    }
 
-            // If the number is negative, apply sign extension
-            if (immediate < 0) {
-                immediateBinary = immediateBinary.substring(immediateBinary.length() - 16);
+    enum OutputFormat {
+        HEX, BINARY, OBJECT;
+
+        static OutputFormat fromName(String name) {
+            switch (name) {
+                case "hex":
+                    return HEX;
+                case "bin":
+                    return BINARY;
+                case "obj":
+                    return OBJECT;
+                default:
+                    return null;
             }
+        }
+    }
 
-            System.out.println(opcode + rs + rt + immediateBinary);
-            return binaryToHex(opcode + rs + rt + immediateBinary);
+    // Encoded words of one section and the labels defined in it
+    static class Segment {
+        final int[] words;
+        final int wordCount;
+        final Map<String, Integer> labels;
+
+        Segment(int[] words, int wordCount, Map<String, Integer> labels) {
+            this.words = words;
+            this.wordCount = wordCount;
+            this.labels = labels;
         }
     }
 
-    private static String binaryToHex(String binary) {
-        return String.format("%08x", Long.parseLong(binary, 2));
+    // Relocatable output of one input file: both segments assembled as if the module were
+    // alone at the default origin, and the references the link stage has to patch
+    static class Relocatable {
+        final Segment text;
+        final Segment data;
+        final Fixups relocations;
+
+        Relocatable(Segment text, Segment data, Fixups relocations) {
+            this.text = text;
+            this.data = data;
+            this.relocations = relocations;
+        }
+    }
+
+    // Assembles input files [from, to) into modules, one file per leaf. Never serialized
+    @SuppressWarnings("serial")
+    static class ModuleTask extends RecursiveAction {
+        private final List<String> inputFiles;
+        private final ObjectCache cache;
+        private final Metrics metrics;
+        private final Relocatable[] modules;
+        private final int from;
+        private final int to;
+
+        ModuleTask(List<String> inputFiles, ObjectCache cache, Metrics metrics, Relocatable[] modules, int from,
+                   int to) {
+            this.inputFiles = inputFiles;
+            this.cache = cache;
+            this.metrics = metrics;
+            this.modules = modules;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    modules[from] = assembleModule(inputFiles.get(from), cache, metrics);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ModuleTask(inputFiles, cache, metrics, modules, from, middle),
+                    new ModuleTask(inputFiles, cache, metrics, modules, middle, to));
+        }
+    }
+
+    // Encodes source lines [from, to), splitting large ranges in half. Word i of the
+    // output belongs to the line whose offset range contains it. Never serialized
+    @SuppressWarnings("serial")
+    static class EncodeTask extends RecursiveAction {
+        private static final int CHUNK_SIZE = 8192;
+
+        private final String[] instructions;
+        private final int[] offsets;
+        private final int[] words;
+        private final int from;
+        private final int to;
+        private final Map<String, Integer> textLabels;
+        private final Map<String, Integer> dataLabels;
+
+        EncodeTask(String[] instructions, int[] offsets, int[] words, int from, int to,
+                   Map<String, Integer> textLabels, Map<String, Integer> dataLabels) {
+            this.instructions = instructions;
+            this.offsets = offsets;
+            this.words = words;
+            this.from = from;
+            this.to = to;
+            this.textLabels = textLabels;
+            this.dataLabels = dataLabels;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                Lexer line = new Lexer();
+                for (int i = from; i < to; i++) {
+                    assembleLine(line.tokenize(instructions[i]), 0x00400000 + 4 * offsets[i], words, offsets[i],
+                            textLabels, dataLabels, null);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new EncodeTask(instructions, offsets, words, from, middle, textLabels, dataLabels),
+                    new EncodeTask(instructions, offsets, words, middle, to, textLabels, dataLabels));
+        }
     }
 }
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Instrumentation of one assembler run, created by --metrics and null otherwise, so a run
+// without it only pays a null check at each phase boundary. phase() closes the interval since
+// the previous phase with its wall time and the bytes allocated meanwhile by all live threads,
+// as counted by the JVM; threads that ended during the phase are missed. Mnemonics are counted
+// by count(), which the passes only call when metrics are on. report() writes it all as JSON,
+// its numbers formatted in Locale.ROOT so a comma-decimal locale cannot break the syntax
+class Metrics {
+    private final com.sun.management.ThreadMXBean threads;
+    private final long startNanos;
+    private long phaseNanos;
+    private long phaseAllocated;
+    private final List<String> phases = new ArrayList<>();
+    private final Map<String, long[]> mnemonics = new TreeMap<>();   // {count}
+    private final Map<String, long[]> expansions = new TreeMap<>();  // {count, words}
+    private int textLabels;
+    private int dataLabels;
+    private int cacheHits;
+    private int cacheMisses;
+
+    Metrics() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        threads = bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) bean : null;
+        startNanos = System.nanoTime();
+        phaseNanos = startNanos;
+        phaseAllocated = allocated();
+    }
+
+    // Ends the current phase. lines and words are what it processed, -1 when it has none
+    synchronized void phase(String name, long lines, long words) {
+        long now = System.nanoTime();
+        long allocated = allocated();
+        double seconds = Math.max(1, now - phaseNanos) / 1e9;
+        StringBuilder json = new StringBuilder("{\"name\": ").append(quote(name));
+        json.append(String.format(Locale.ROOT, ", \"ms\": %.3f", seconds * 1e3));
+        if (threads != null) json.append(", \"allocated_bytes\": ").append(allocated - phaseAllocated);
+        if (lines >= 0) {
+            json.append(", \"lines\": ").append(lines);
+            json.append(String.format(Locale.ROOT, ", \"lines_per_second\": %.0f", lines / seconds));
+        }
+        if (words >= 0) {
+            json.append(", \"words\": ").append(words);
+            json.append(String.format(Locale.ROOT, ", \"words_per_second\": %.0f", words / seconds));
+        }
+        phases.add(json.append('}').toString());
+        phaseNanos = System.nanoTime();
+        phaseAllocated = allocated();
+    }
+
+    // Counts the instruction of a tokenized text line, and the words of a pseudo-instruction
+    synchronized void count(Lexer line, int descriptor, int words) {
+        if (line.count() == 0) return;
+        String name = descriptor < 0 ? "invalid" : line.text(0);
+        mnemonics.computeIfAbsent(name, key -> new long[1])[0]++;
+        if (descriptor >= 0 && Isa.format(descriptor) == Isa.PSEUDO) {
+            long[] expansion = expansions.computeIfAbsent(name, key -> new long[2]);
+            expansion[0]++;
+            expansion[1] += words;
+        }
+    }
+
+    synchronized void labels(int text, int data) {
+        textLabels += text;
+        dataLabels += data;
+    }
+
+    synchronized void cache(boolean hit) {
+        if (hit) cacheHits++;
+        else cacheMisses++;
+    }
+
+    void report(String file) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT, "  \"total_ms\": %.3f,\n", (System.nanoTime() - startNanos) / 1e6));
+        json.append("  \"phases\": [\n    ").append(String.join(",\n    ", phases)).append("\n  ],\n");
+        json.append("  \"labels\": {\"text\": ").append(textLabels).append(", \"data\": ").append(dataLabels)
+                .append("},\n");
+        if (cacheHits + cacheMisses > 0) {
+            json.append("  \"cache\": {\"hits\": ").append(cacheHits).append(", \"misses\": ").append(cacheMisses)
+                    .append("},\n");
+        }
+        json.append("  \"mnemonics\": {");
+        String separator = "";
+        for (Map.Entry<String, long[]> entry : mnemonics.entrySet()) {
+            json.append(separator).append(quote(entry.getKey())).append(": ").append(entry.getValue()[0]);
+            separator = ", ";
+        }
+        json.append("},\n  \"pseudo_instructions\": {");
+        separator = "";
+        for (Map.Entry<String, long[]> entry : expansions.entrySet()) {
+            long[] expansion = entry.getValue();
+            json.append(separator).append(quote(entry.getKey())).append(": {\"count\": ").append(expansion[0])
+                    .append(", \"words\": ").append(expansion[1]).append('}');
+            separator = ", ";
+        }
+        json.append("}\n}\n");
+        if (file.equals("-")) {
+            System.err.print(json);
+        } else {
+            Files.write(Paths.get(file), json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private long allocated() {
+        if (threads == null) return 0;
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < ' ') quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Assembled modules saved by --cache, one file per module named after the SHA-256 of the
+// cache format, the versions of the instruction tables and of the data packing, and the source
+// bytes. Equal sources share an entry whatever their file name, and a hit skips lexing and
+// encoding, leaving only the link stage's patching. Every use refreshes the file's
+// modification time; evict() then deletes the least recently used files until the directory
+// fits its size limit.
+// Files are written under a temporary name and renamed, so concurrent builds can share a cache
+class ObjectCache {
+    private static final int MAGIC = 0x4d4f4331; // "MOC1"
+    private static final int VERSION = 1; // Bump whenever the file layout changes
+    private static final String SUFFIX = ".mobj";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    ObjectCache(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+    }
+
+    // Cache file name for a module's source
+    static String key(byte[] source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(12).putInt(VERSION).putInt(Isa.VERSION).putInt(DataSection.VERSION)
+                    .array());
+            byte[] hash = digest.digest(source);
+            StringBuilder name = new StringBuilder(2 * hash.length + SUFFIX.length());
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JDK has SHA-256
+        }
+    }
+
+    // File layout: magic, version, text word count, data word count, text label count, data
+    // label count, relocation label count, then the text and data words, the labels as
+    // {short length, UTF-8 bytes, int address} and the relocations as {short length,
+    // UTF-8 bytes, int count, references}. A missing or unreadable entry is a miss
+    Main.Relocatable get(String key) {
+        Path file = directory.resolve(key);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            int[] text = new int[in.getInt()];
+            int[] data = new int[in.getInt()];
+            int textLabelCount = in.getInt();
+            int dataLabelCount = in.getInt();
+            int relocationCount = in.getInt();
+            in.asIntBuffer().get(text);
+            in.position(in.position() + 4 * text.length);
+            in.asIntBuffer().get(data);
+            in.position(in.position() + 4 * data.length);
+            Map<String, Integer> textLabels = readLabels(in, textLabelCount);
+            Map<String, Integer> dataLabels = readLabels(in, dataLabelCount);
+            Fixups relocations = new Fixups(SegmentWriter.TEXT_ADDRESS, true);
+            for (int i = 0; i < relocationCount; i++) {
+                String label = readName(in);
+                for (int j = in.getInt(); j > 0; j--) {
+                    int reference = in.getInt();
+                    relocations.add(label, reference & 3, reference >>> 2);
+                }
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Main.Relocatable(new Main.Segment(text, text.length, textLabels),
+                    new Main.Segment(data, data.length, dataLabels), relocations);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable cache entry " + file + ": " + e);
+            return null;
+        }
+    }
+
+    void put(String key, Main.Relocatable module) throws IOException {
+        Main.Segment text = module.text;
+        Main.Segment data = module.data;
+        Map<String, int[]> relocations = module.relocations.pending();
+        long size = 28 + 4L * (text.wordCount + data.wordCount);
+        for (Map<String, ?> labels : List.of(text.labels, data.labels, relocations)) {
+            for (String label : labels.keySet()) {
+                size += 6 + label.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        for (int[] references : relocations.values()) {
+            size += 4L * (references[0] - 1);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(size));
+        out.putInt(MAGIC).putInt(VERSION).putInt(text.wordCount).putInt(data.wordCount);
+        out.putInt(text.labels.size()).putInt(data.labels.size()).putInt(relocations.size());
+        for (int i = 0; i < text.wordCount; i++) {
+            out.putInt(text.words[i]);
+        }
+        for (int i = 0; i < data.wordCount; i++) {
+            out.putInt(data.words[i]);
+        }
+        putLabels(out, text.labels);
+        putLabels(out, data.labels);
+        for (Map.Entry<String, int[]> entry : relocations.entrySet()) {
+            int[] references = entry.getValue();
+            putName(out, entry.getKey()).putInt(references[0] - 1);
+            for (int i = 1; i < references[0]; i++) {
+                out.putInt(references[i]);
+            }
+        }
+        out.flip();
+
+        Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        Files.move(temporary, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Deletes the least recently used entries until the cache holds at most maxBytes
+    void evict() throws IOException {
+        List<Path> files = new ArrayList<>();
+        Map<Path, long[]> stats = new HashMap<>(); // {last use, size}
+        long total = 0;
+        try (Stream<Path> entries = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) entries::iterator) {
+                if (!file.getFileName().toString().endsWith(SUFFIX)) continue;
+                try {
+                    long size = Files.size(file);
+                    stats.put(file, new long[]{Files.getLastModifiedTime(file).toMillis(), size});
+                    files.add(file);
+                    total += size;
+                } catch (NoSuchFileException e) {
+                    // Evicted by a concurrent build
+                }
+            }
+        }
+        if (total <= maxBytes) return;
+        files.sort((a, b) -> Long.compare(stats.get(a)[0], stats.get(b)[0]));
+        for (int i = 0; i < files.size() && total > maxBytes; i++) {
+            Files.deleteIfExists(files.get(i));
+            total -= stats.get(files.get(i))[1];
+        }
+    }
+
+    private static void putLabels(ByteBuffer out, Map<String, Integer> labels) {
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            putName(out, label.getKey()).putInt(label.getValue());
+        }
+    }
+
+    private static ByteBuffer putName(ByteBuffer out, String label) {
+        byte[] name = label.getBytes(StandardCharsets.UTF_8);
+        return out.putShort((short) name.length).put(name);
+    }
+
+    private static Map<String, Integer> readLabels(ByteBuffer in, int count) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            labels.put(readName(in), in.getInt());
+        }
+        return labels;
+    }
+
+    private static String readName(ByteBuffer in) {
+        byte[] name = new byte[in.getShort()];
+        in.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+// Destination for the words of one assembled segment, written in address order
+interface SegmentWriter extends Closeable {
+    int TEXT_ADDRESS = 0x00400000;
+    int DATA_ADDRESS = 0x10010000;
+
+    void write(int word) throws IOException;
+
+    // Writes count words of words from offset, in one go where the format allows
+    default void write(int[] words, int offset, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            write(words[offset + i]);
+        }
+    }
+
+    // Opens the {text, data} writers for the chosen format. Word counts and labels
+    // come from the first pass so binary outputs can be mapped at their final size
+    static SegmentWriter[] open(String baseName, Main.Options options, int textWords, int dataWords,
+                                Map<String, Integer> textLabels, Map<String, Integer> dataLabels) throws IOException {
+        switch (options.format) {
+            case BINARY:
+                return new SegmentWriter[]{
+                        new MappedSegmentWriter(map(baseName + ".text", 4L * textWords, options.byteOrder)),
+                        new MappedSegmentWriter(map(baseName + ".data", 4L * dataWords, options.byteOrder))
+                };
+            case OBJECT:
+                return openObject(baseName + ".obj", options.byteOrder, textWords, dataWords, textLabels, dataLabels);
+            default:
+                return new SegmentWriter[]{
+                        new HexSegmentWriter(baseName + ".text"),
+                        new HexSegmentWriter(baseName + ".data")
+                };
+        }
+    }
+
+    // Object container layout, every field in the selected byte order:
+    //   0  magic "MOBJ"          4  version (1)             8  byte order (0 little, 1 big)
+    //  12  text address         16  text word count        20  data address
+    //  24  data word count      28  symbol count
+    //  32  text words, then data words, then symbols as
+    //      {byte kind (0 text, 1 data), int address, short name length, UTF-8 name}
+    private static SegmentWriter[] openObject(String outputFile, ByteOrder order, int textWords, int dataWords,
+                                              Map<String, Integer> textLabels,
+                                              Map<String, Integer> dataLabels) throws IOException {
+        long symbolBytes = symbolTableSize(textLabels) + symbolTableSize(dataLabels);
+        long textOffset = 32;
+        long dataOffset = textOffset + 4L * textWords;
+        long symbolOffset = dataOffset + 4L * dataWords;
+
+        MappedByteBuffer buffer = map(outputFile, symbolOffset + symbolBytes, order);
+        buffer.put("MOBJ".getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(1);
+        buffer.putInt(order == ByteOrder.BIG_ENDIAN ? 1 : 0);
+        buffer.putInt(TEXT_ADDRESS).putInt(textWords);
+        buffer.putInt(DATA_ADDRESS).putInt(dataWords);
+        buffer.putInt(textLabels.size() + dataLabels.size());
+
+        buffer.position((int) symbolOffset);
+        putSymbols(buffer, 0, textLabels);
+        putSymbols(buffer, 1, dataLabels);
+
+        ByteBuffer text = buffer.duplicate().order(order).position((int) textOffset).limit((int) dataOffset);
+        ByteBuffer data = buffer.duplicate().order(order).position((int) dataOffset).limit((int) symbolOffset);
+        return new SegmentWriter[]{new MappedSegmentWriter(buffer, text), new MappedSegmentWriter(buffer, data)};
+    }
+
+    private static long symbolTableSize(Map<String, Integer> labels) {
+        long size = 0;
+        for (String label : labels.keySet()) {
+            size += 7 + label.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+
+    private static void putSymbols(ByteBuffer buffer, int kind, Map<String, Integer> labels) {
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            byte[] name = label.getKey().getBytes(StandardCharsets.UTF_8);
+            buffer.put((byte) kind).putInt(label.getValue()).putShort((short) name.length).put(name);
+        }
+    }
+
+    private static MappedByteBuffer map(String outputFile, long size, ByteOrder order) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Output too large to map: " + outputFile);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(order);
+            return buffer;
+        }
+    }
+
+    // One 8-digit hex line per word, the original .text/.data format
+    class HexSegmentWriter implements SegmentWriter {
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        private final Writer writer;
+        private final char[] line = new char[9];
+
+        HexSegmentWriter(String outputFile) throws IOException {
+            this.writer = Files.newBufferedWriter(Paths.get(outputFile));
+            line[8] = '\n';
+        }
+
+        @Override
+        public void write(int word) throws IOException {
+            for (int j = 7; j >= 0; j--) {
+                line[j] = HEX_DIGITS[word & 0xF];
+                word >>>= 4;
+            }
+            writer.write(line);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    // Raw words stored into a memory-mapped region of the output file
+    class MappedSegmentWriter implements SegmentWriter {
+        private final MappedByteBuffer file;
+        private final ByteBuffer region;
+
+        MappedSegmentWriter(MappedByteBuffer file) {
+            this(file, file);
+        }
+
+        MappedSegmentWriter(MappedByteBuffer file, ByteBuffer region) {
+            this.file = file;
+            this.region = region;
+        }
+
+        @Override
+        public void write(int word) {
+            region.putInt(word);
+        }
+
+        @Override
+        public void write(int[] words, int offset, int count) {
+            region.asIntBuffer().put(words, offset, count); // The view keeps the region's byte order
+            region.position(region.position() + 4 * count);
+        }
+
+        @Override
+        public void close() {
+            file.force();
+        }
+    }
+}